@@ -16,20 +16,77 @@
 package org.arpnetwork.adb;
 
 import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
 
 public abstract class Channel {
-    private static final int BUFFER_SIZE = 128 * 1024;
+    private static final int LOW_WATER_MARK = 256 * 1024;
+    private static final int HIGH_WATER_MARK = 1024 * 1024;
 
     private Connection mConn;
     private int mId;
     private int mRemoteId;
 
+    // Only holds bytes of a message which is split across frames. It is taken
+    // from the connection's allocator when needed and released once empty.
     private ByteBuf mBuf;
 
+    // Guarded by this. Without delayed_ack, ADB allows a single WRTE in flight
+    // per stream and the next one is sent when the peer's OKAY arrives. With it,
+    // frames are sent as long as the peer's window has room, and each OKAY
+    // gives acknowledged bytes back to the window. Queued writes are merged into
+    // frames of up to the peer's max payload, larger ones leave the queue one
+    // frame at a time.
+    private ArrayDeque<PendingWrite> mWrites;
+    private ArrayDeque<Frame> mInFlight;
+    private boolean mWindowed;
+    private long mSendWindow;
+    private long mAckedBytes;
+    private long mPendingBytes;
+    private int mReceiveWindow;
+    private int mUnackedBytes;
+    private int mUnackedFrames;
+    private boolean mAcksHeld;
+    private boolean mSending;
+    private boolean mFlushScheduled;
+    private boolean mCloseRequested;
+    private boolean mCloseSent;
+    private boolean mClosed;
+    private boolean mWritable;
+    private int mLowWaterMark;
+    private int mHighWaterMark;
+
     private ChannelListener mListener;
+    private WritabilityListener mWritabilityListener;
+
+    // Without one, data and listener callbacks run inline on the connection's
+    // event loop, which every channel of the connection shares.
+    private volatile SerialExecutor mExecutor;
+
+    private Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (Channel.this) {
+                mFlushScheduled = false;
+            }
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                // The writes of the frame have failed with it
+            }
+        }
+    };
 
     public interface ChannelListener {
         void onOpened(Channel ch);
@@ -37,64 +94,528 @@ public abstract class Channel {
         void onClosed(Channel ch);
     }
 
+    public interface WritabilityListener {
+        void onWritabilityChanged(Channel ch, boolean writable);
+    }
+
+    // Called before the OPEN is sent, listeners set here see every event.
+    public interface Initializer<T extends Channel> {
+        void init(T ch);
+    }
+
     public Channel(Connection conn, int id) {
         mConn = conn;
         mId = id;
         mRemoteId = -1;
-        mBuf = Unpooled.buffer(BUFFER_SIZE);
+        mWrites = new ArrayDeque<>();
+        mInFlight = new ArrayDeque<>();
+        mWritable = true;
+        mLowWaterMark = LOW_WATER_MARK;
+        mHighWaterMark = HIGH_WATER_MARK;
     }
 
     public void setStreamListener(ChannelListener listener) {
         mListener = listener;
     }
 
+    public void setWritabilityListener(WritabilityListener listener) {
+        mWritabilityListener = listener;
+    }
+
+    // Moves decoding, data and stream listener callbacks off the event loop.
+    // They still run one at a time and in order, and the device is only
+    // acknowledged once they are done. Write futures and the writability
+    // listener are still completed where the ack is read. Set it before the
+    // channel is opened, e.g. from an Initializer.
+    public void setCallbackExecutor(Executor executor) {
+        mExecutor = executor != null ? new SerialExecutor(executor) : null;
+    }
+
+    public void setWriteBufferWaterMark(int low, int high) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException();
+        }
+
+        synchronized (this) {
+            mLowWaterMark = low;
+            mHighWaterMark = high;
+        }
+        updateWritability();
+    }
+
+    // False while more than the high water mark is queued or unacknowledged,
+    // until it drops below the low water mark again.
+    public synchronized boolean isWritable() {
+        return mWritable;
+    }
+
+    // Blocks the calling thread until the channel is writable again. Must not be
+    // called from the connection's event loop.
+    public synchronized void awaitWritable() throws ClosedChannelException, InterruptedException {
+        while (!mWritable && !mClosed) {
+            wait();
+        }
+        if (mClosed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    // The CLSE is sent after all queued writes have been acknowledged.
     public void close() {
-        mConn.close(mId, mRemoteId);
+        synchronized (this) {
+            if (mClosed || mCloseRequested) {
+                return;
+            }
+            mCloseRequested = true;
+        }
+        flush();
+    }
+
+    protected Future<Void> write(byte[] data) {
+        return write(Unpooled.wrappedBuffer(data));
+    }
+
+    // The returned future completes once the peer has acknowledged the data.
+    protected Future<Void> write(ByteBuf buf) {
+        Promise<Void> promise = mConn.newPromise();
+        if (!buf.isReadable()) {
+            buf.release();
+            return promise.setSuccess(null);
+        }
+
+        synchronized (this) {
+            if (mClosed || mCloseRequested) {
+                buf.release();
+                return promise.setFailure(new ClosedChannelException());
+            }
+
+            mWrites.add(new PendingWrite(buf, promise));
+            mPendingBytes += buf.readableBytes();
+        }
+        updateWritability();
+        flush();
+
+        return promise;
+    }
+
+    protected ByteBufAllocator alloc() {
+        return mConn.alloc();
+    }
+
+    public int maxPayload() {
+        return mConn.maxPayload();
     }
 
-    protected void write(byte[] data) {
-        mConn.write(mId, mRemoteId, data);
+    public boolean hasFeature(String feature) {
+        return mConn.hasFeature(feature);
+    }
+
+    protected Connection connection() {
+        return mConn;
     }
 
     public int id() {
         return mId;
     }
 
-    public int remoteId() {
+    public synchronized int remoteId() {
         return mRemoteId;
     }
 
-    public boolean isOpened() {
+    public synchronized boolean isOpened() {
         return mRemoteId > 0;
     }
 
 
-    public void onOpened(int remoteId) {
-        mRemoteId = remoteId;
+    // Unless windowed, every WRTE waits for the OKAY of the previous one and
+    // window is ignored.
+    public void onOpened(int remoteId, boolean windowed, int window) {
+        synchronized (this) {
+            mRemoteId = remoteId;
+            mWindowed = windowed;
+            mSendWindow = windowed ? window : 0;
+            mReceiveWindow = mConn.receiveWindow();
+        }
 
-        if (mListener != null) {
-            mListener.onOpened(this);
+        final ChannelListener listener = mListener;
+        if (listener != null) {
+            SerialExecutor executor = mExecutor;
+            if (executor == null) {
+                listener.onOpened(this);
+            } else {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onOpened(Channel.this);
+                    }
+                });
+            }
         }
+
+        flush();
+    }
+
+    // Unless windowed, the single frame in flight is acknowledged. Otherwise
+    // bytes is a signed window update, which may also be negative.
+    public void onAck(boolean windowed, int bytes) {
+        List<PendingWrite> completed = new ArrayList<>();
+        synchronized (this) {
+            if (!windowed) {
+                mAckedBytes = mInFlight.isEmpty() ? 0 : mInFlight.peek().bytes;
+            } else {
+                mSendWindow += bytes;
+                mAckedBytes += bytes;
+            }
+
+            Frame f;
+            while ((f = mInFlight.peek()) != null && f.bytes <= mAckedBytes) {
+                mInFlight.poll();
+                mAckedBytes -= f.bytes;
+                mPendingBytes -= f.bytes;
+                completed.addAll(f.writes);
+            }
+        }
+
+        for (PendingWrite w : completed) {
+            w.promise.trySuccess(null);
+        }
+        updateWritability();
+        flush();
     }
 
     public void onClosed() {
+        List<PendingWrite> failed = new ArrayList<>();
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+            for (Frame f : mInFlight) {
+                failed.addAll(f.writes);
+            }
+            mInFlight.clear();
+            PendingWrite w;
+            while ((w = mWrites.poll()) != null) {
+                // Data which has not been handed to the connection yet
+                w.buf.release();
+                failed.add(w);
+            }
+            mPendingBytes = 0;
+        }
+        releaseBuffer();
+
+        for (PendingWrite w : failed) {
+            w.promise.tryFailure(new ClosedChannelException());
+        }
+
         if (mListener != null) {
             mListener.onClosed(this);
         }
     }
 
-    public void onData(byte[] data) throws IOException {
-        mBuf.writeBytes(data);
+    // Hands a WRTE to onData, on the callback executor if there is one. A
+    // decoding error there closes the channel rather than the connection.
+    void dispatchData(final ByteBuf data) throws IOException {
+        SerialExecutor executor = mExecutor;
+        if (executor == null) {
+            onData(data);
+            return;
+        }
+
+        data.retain();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        onData(data);
+                    } catch (IOException e) {
+                        close();
+                    } finally {
+                        data.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            data.release();
+            throw e;
+        }
+    }
+
+    // Queued behind the data dispatched before it.
+    void dispatchClosed() {
+        SerialExecutor executor = mExecutor;
+        if (executor == null) {
+            onClosed();
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onClosed();
+            }
+        });
+    }
+
+    public void onData(ByteBuf data) throws IOException {
+        int length = data.readableBytes();
+
+        ByteBuf buf = data;
+        if (mBuf != null) {
+            cumulate(data);
+            buf = mBuf;
+        }
 
         Object msg;
-        while ((msg = decode(mBuf)) != null) {
+        while ((msg = decode(buf)) != null) {
             onRead(msg);
         }
 
-        mBuf.discardSomeReadBytes();
+        if (buf == data) {
+            if (data.isReadable()) {
+                mBuf = alloc().buffer(data.readableBytes());
+                mBuf.writeBytes(data);
+            }
+        } else if (!mBuf.isReadable()) {
+            releaseBuffer();
+        } else if (mBuf.refCnt() == 1) {
+            mBuf.discardSomeReadBytes();
+        }
+
+        ack(length);
     }
 
-    protected abstract Object decode(ByteBuf buf);
+    protected abstract Object decode(ByteBuf buf) throws IOException;
 
     protected abstract void onRead(Object msg) throws IOException;
+
+    // Decoded messages may still hold slices of the buffer, in which case the
+    // remaining bytes are moved to a new one rather than written in place.
+    private void cumulate(ByteBuf data) {
+        if (mBuf.refCnt() > 1) {
+            ByteBuf buf = alloc().buffer(mBuf.readableBytes() + data.readableBytes());
+            buf.writeBytes(mBuf);
+            mBuf.release();
+            mBuf = buf;
+        }
+        mBuf.writeBytes(data);
+    }
+
+    private void releaseBuffer() {
+        if (mBuf != null) {
+            mBuf.release();
+            mBuf = null;
+        }
+    }
+
+    // While acks are held the device soon stops sending, which bounds what a
+    // slow consumer has to buffer. Held acks are sent once released.
+    protected void holdAcks(boolean hold) {
+        synchronized (this) {
+            mAcksHeld = hold;
+        }
+        if (!hold) {
+            ack(0);
+        }
+    }
+
+    // Without delayed_ack every WRTE is acknowledged once it has been decoded.
+    // With it, window updates are sent once half of our receive window has been
+    // used up.
+    private void ack(int length) {
+        int bytes;
+        int frames;
+        int remoteId;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            remoteId = mRemoteId;
+            if (length > 0) {
+                mUnackedBytes += length;
+                mUnackedFrames++;
+            }
+            if (mAcksHeld || mUnackedFrames == 0) {
+                return;
+            }
+            if (mReceiveWindow > 0 && mUnackedBytes < mReceiveWindow / 2) {
+                return;
+            }
+            bytes = mUnackedBytes;
+            frames = mReceiveWindow > 0 ? 1 : mUnackedFrames;
+            mUnackedBytes = 0;
+            mUnackedFrames = 0;
+        }
+
+        for (int i = 0; i < frames; ++i) {
+            mConn.sendReady(mId, remoteId, bytes);
+        }
+    }
+
+    // Sends queued frames while the peer is ready for them. Frames are only sent
+    // from the connection's event loop: writes from other threads are queued by
+    // netty, and a frame sent inline for an OKAY could overtake them. Connection
+    // is never called with the lock held, and a flush started by a callback of
+    // the write itself leaves the sending to the one already running.
+    private void flush() {
+        EventExecutor executor = mConn.executor();
+        if (!executor.inEventLoop()) {
+            synchronized (this) {
+                if (mFlushScheduled) {
+                    return;
+                }
+                mFlushScheduled = true;
+            }
+            try {
+                executor.execute(mFlushTask);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    mFlushScheduled = false;
+                }
+                throw e;
+            }
+            return;
+        }
+
+        int maxPayload = maxPayload();
+        ByteBufAllocator alloc = alloc();
+        while (true) {
+            ByteBuf buf = null;
+            Frame f = null;
+            int remoteId;
+            synchronized (this) {
+                if (mSending || mClosed || !isOpened()) {
+                    return;
+                }
+
+                PendingWrite w = mWrites.peek();
+                if (w != null) {
+                    if (!mWindowed ? !mInFlight.isEmpty() : mSendWindow <= 0) {
+                        return;
+                    }
+
+                    int max = !mWindowed ? maxPayload : (int) Math.min(maxPayload, mSendWindow);
+                    f = new Frame();
+                    CompositeByteBuf composite = null;
+                    while (w != null && f.bytes < max) {
+                        int room = max - f.bytes;
+                        ByteBuf part;
+                        if (w.buf.readableBytes() <= room) {
+                            mWrites.poll();
+                            part = w.buf;
+                            f.writes.add(w);
+                        } else {
+                            part = w.buf.readRetainedSlice(room);
+                            f.partial = w;
+                        }
+                        f.bytes += part.readableBytes();
+
+                        if (buf == null) {
+                            buf = part;
+                        } else {
+                            if (composite == null) {
+                                composite = alloc.compositeBuffer(Integer.MAX_VALUE);
+                                composite.addComponent(true, buf);
+                                buf = composite;
+                            }
+                            composite.addComponent(true, part);
+                        }
+                        w = mWrites.peek();
+                    }
+                    mInFlight.add(f);
+                    if (mWindowed) {
+                        mSendWindow -= f.bytes;
+                    }
+                } else if (!mInFlight.isEmpty()) {
+                    return;
+                } else if (!mCloseRequested || mCloseSent) {
+                    return;
+                } else {
+                    mCloseSent = true;
+                }
+                remoteId = mRemoteId;
+                mSending = true;
+            }
+
+            try {
+                if (buf != null) {
+                    mConn.write(mId, remoteId, buf);
+                } else {
+                    mConn.close(mId, remoteId);
+                    return;
+                }
+            } catch (RuntimeException e) {
+                if (f != null) {
+                    abort(f, e);
+                }
+                throw e;
+            } finally {
+                synchronized (this) {
+                    mSending = false;
+                }
+            }
+        }
+    }
+
+    // The frame never reached the connection. Its writes fail, and so does a
+    // write it only carried the start of, since the rest would arrive without it.
+    private void abort(Frame f, Throwable cause) {
+        List<PendingWrite> failed = new ArrayList<>(f.writes);
+        synchronized (this) {
+            mInFlight.removeLastOccurrence(f);
+            mPendingBytes -= f.bytes;
+            if (mWindowed) {
+                mSendWindow += f.bytes;
+            }
+            if (f.partial != null && mWrites.peek() == f.partial) {
+                mWrites.poll();
+                mPendingBytes -= f.partial.buf.readableBytes();
+                f.partial.buf.release();
+                failed.add(f.partial);
+            }
+        }
+
+        for (PendingWrite w : failed) {
+            w.promise.tryFailure(cause);
+        }
+        updateWritability();
+    }
+
+    private void updateWritability() {
+        boolean changed = false;
+        boolean writable;
+        synchronized (this) {
+            if (mWritable && mPendingBytes > mHighWaterMark) {
+                mWritable = false;
+                changed = true;
+            } else if (!mWritable && mPendingBytes < mLowWaterMark) {
+                mWritable = true;
+                changed = true;
+                notifyAll();
+            }
+            writable = mWritable;
+        }
+
+        if (changed && mWritabilityListener != null) {
+            mWritabilityListener.onWritabilityChanged(this, writable);
+        }
+    }
+
+    // A WRTE waiting for its acknowledgement. Consecutive small writes share a
+    // frame, and each write is completed by the frame holding its last byte.
+    private static class Frame {
+        int bytes;
+        List<PendingWrite> writes = new ArrayList<>(1);
+        // A write which continues in the next frame
+        PendingWrite partial;
+    }
+
+    private static class PendingWrite {
+        ByteBuf buf;
+        Promise<Void> promise;
+
+        PendingWrite(ByteBuf buf, Promise<Void> promise) {
+            this.buf = buf;
+            this.promise = promise;
+        }
+    }
 }
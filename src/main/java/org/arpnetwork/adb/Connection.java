@@ -16,11 +16,29 @@
 
 package org.arpnetwork.adb;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.ProtocolException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
 
 public class Connection implements NettyConnection.ConnectionListener {
     private static final int CNCX = 0x4e584e43;
@@ -30,10 +48,27 @@ public class Connection implements NettyConnection.ConnectionListener {
     private static final int CLSE = 0x45534c43;
     private static final int WRTE = 0x45545257;
 
-    private static final int VERSION = 0x01000000;
-    private static final int MAXDATA = 1024 * 1024;
+    private static final int VERSION = 0x01000001;
+    private static final int VERSION_SKIP_CHECKSUM = 0x01000001;
+    private static final int MAXDATA = Message.MAXDATA;
     private static final int MAXDATA_OLD = 1024 * 4;
 
+    // Bytes the device may send on a stream before waiting for our OKAYs, when
+    // the delayed_ack feature is in use.
+    private static final int RECEIVE_WINDOW = 4 * MAXDATA;
+
+    public static final String FEATURE_LS_V2 = "ls_v2";
+    public static final String FEATURE_DELAYED_ACK = "delayed_ack";
+    public static final String FEATURE_CMD = "cmd";
+    public static final String FEATURE_SENDRECV_V2 = "sendrecv_v2";
+    public static final String FEATURE_SENDRECV_V2_LZ4 = "sendrecv_v2_lz4";
+
+    // Longest wait for the package manager's verdict once the APK is sent
+    private static final long INSTALL_TIMEOUT = 5 * 60 * 1000;
+
+    private static final String FEATURES = "shell_v2," + FEATURE_CMD + ",stat_v2," + FEATURE_LS_V2 + "," + FEATURE_DELAYED_ACK + ","
+            + FEATURE_SENDRECV_V2 + "," + FEATURE_SENDRECV_V2_LZ4;
+
     private static final int AUTH_TOKEN = 1;
     private static final int AUTH_SIGNATURE = 2;
     private static final int AUTH_RSAPUBLICKEY = 3;
@@ -41,12 +76,22 @@ public class Connection implements NettyConnection.ConnectionListener {
     private Auth mAuth;
     private String mHost;
     private int mPort;
-
-    private NettyConnection mConn;
-    private State mState;
+    private Transport mTransport;
+
+    // Lifecycle changes are synchronized, while frames are dispatched and
+    // written without holding the connection's monitor, so writers never wait
+    // for a listener. Channel callbacks run on the shared event loop unless the
+    // channel has a callback executor, so only those keep a slow listener from
+    // delaying reads on the other channels.
+    private volatile NettyConnection mConn;
+    private volatile State mState;
     private ConcurrentHashMap<Integer, Channel> mChannels;
-    private int mSeq;
-    private ConnectionListener mListener;
+    private volatile int mMaxData;
+    private volatile Set<String> mFeatures;
+    private volatile boolean mDelayedAck;
+    private AtomicInteger mSeq;
+    private volatile ConnectionListener mListener;
+    private volatile StatCache mStatCache;
 
     public interface ConnectionListener {
         void onConnected(Connection conn);
@@ -67,22 +112,37 @@ public class Connection implements NettyConnection.ConnectionListener {
     }
 
     public Connection(Auth auth, String host, int port) {
+        this(auth, host, port, null);
+    }
+
+    public Connection(Auth auth, String host, int port, Transport transport) {
         mAuth = auth;
         mHost = host;
         mPort = port;
+        mTransport = transport;
         mState = State.IDLE;
         mChannels = new ConcurrentHashMap<>();
-        mSeq = 1;
+        mSeq = new AtomicInteger(1);
+        mMaxData = MAXDATA_OLD;
+        mFeatures = Collections.emptySet();
     }
 
     public synchronized void setListener(ConnectionListener listener) {
         mListener = listener;
     }
 
+    public void setStatCache(StatCache cache) {
+        mStatCache = cache;
+    }
+
+    public StatCache statCache() {
+        return mStatCache;
+    }
+
     public synchronized void connect() {
         assertState(State.IDLE);
 
-        mConn = new NettyConnection(mHost, mPort);
+        mConn = new NettyConnection(mHost, mPort, mTransport);
         mConn.setListener(this);
         mState = State.CONNECTING;
         mConn.connect();
@@ -103,66 +163,213 @@ public class Connection implements NettyConnection.ConnectionListener {
         reset();
     }
 
-    public synchronized ShellChannel openShell(String cmd) {
-        int id = open("shell,v2,raw:" + cmd);
+    public ShellChannel openShell(String cmd) {
+        return openShell(cmd, null);
+    }
 
-        ShellChannel ch = new ShellChannel(this, id);
-        mChannels.put(id, ch);
+    public ShellChannel openShell(String cmd, Channel.Initializer<ShellChannel> initializer) {
+        ShellChannel ch = new ShellChannel(this, mSeq.getAndIncrement());
+        if (initializer != null) {
+            initializer.init(ch);
+        }
+        open(ch, "shell,v2,raw:" + cmd);
         return ch;
     }
 
-    public synchronized RawChannel openExec(String cmd) {
-        int id = open("exec:" + cmd);
+    // Runs cmd in a shell of its own and collects its output within limits.
+    // The future completes once the command exits or its deadline passes.
+    public Future<ShellResult> execute(String cmd, ShellLimits limits) {
+        NettyConnection conn = conn();
+        ShellChannel ch = new ShellChannel(this, mSeq.getAndIncrement());
+        ShellExecution execution = new ShellExecution(ch, limits, conn.alloc(), conn.executor());
+        ch.setBufferListener(execution);
+        ch.setStreamListener(execution);
+        open(ch, "shell,v2,raw:" + cmd);
+        execution.start();
+        return execution.promise();
+    }
 
-        RawChannel ch = new RawChannel(this, id);
-        mChannels.put(id, ch);
-        return ch;
+    // Streams apk straight into the package manager, without a copy on the
+    // device. options are extra, already quoted, pm install options such as
+    // "-r". Must not be called from the connection's event loop.
+    public void install(File apk, String options) throws IOException, InterruptedException {
+        if (!hasFeature(FEATURE_CMD)) {
+            throw new IOException("Streamed install not supported");
+        }
+
+        FileInputStream in = new FileInputStream(apk);
+        try {
+            FileChannel fc = in.getChannel();
+            String cmd = "cmd package install -S " + fc.size();
+            if (options != null && !options.isEmpty()) {
+                cmd += " " + options;
+            }
+
+            final StringBuilder output = new StringBuilder();
+            final CountDownLatch closed = new CountDownLatch(1);
+            RawChannel ch = openExec(cmd, new Channel.Initializer<RawChannel>() {
+                @Override
+                public void init(RawChannel ch) {
+                    ch.setLineListener(new RawChannel.RawLineListener() {
+                        @Override
+                        public void onLine(RawChannel ch, CharSequence line) {
+                            synchronized (output) {
+                                output.append(line).append('\n');
+                            }
+                        }
+                    });
+                    ch.setStreamListener(new Channel.ChannelListener() {
+                        @Override
+                        public void onOpened(Channel ch) {
+                        }
+
+                        @Override
+                        public void onClosed(Channel ch) {
+                            closed.countDown();
+                        }
+                    });
+                }
+            });
+
+            try {
+                try {
+                    ch.write(fc);
+                } catch (ClosedChannelException e) {
+                    // The package manager gave up early, its output tells why
+                }
+                if (!closed.await(INSTALL_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Timed out installing " + apk);
+                }
+            } catch (IOException | InterruptedException e) {
+                ch.close();
+                throw e;
+            }
+
+            String result;
+            synchronized (output) {
+                result = output.toString().trim();
+            }
+            if (!result.startsWith("Success")) {
+                throw new IOException("Failed to install " + apk + ": " + result);
+            }
+        } finally {
+            in.close();
+        }
     }
 
-    public synchronized SyncChannel openSync() {
-        int id = open("sync:");
+    public RawChannel openExec(String cmd) {
+        return openExec(cmd, null);
+    }
 
-        SyncChannel ch = new SyncChannel(this, id);
-        mChannels.put(id, ch);
+    public RawChannel openExec(String cmd, Channel.Initializer<RawChannel> initializer) {
+        RawChannel ch = new RawChannel(this, mSeq.getAndIncrement());
+        if (initializer != null) {
+            initializer.init(ch);
+        }
+        open(ch, "exec:" + cmd);
         return ch;
     }
 
-    public synchronized void write(int id, int remoteId, ByteBuf buf) {
-        write(id, remoteId, buf.array());
+    // Runs cmd, whose output must be an H.264 elementary stream.
+    public VideoChannel openVideo(String cmd) {
+        VideoChannel ch = new VideoChannel(this, mSeq.getAndIncrement());
+        open(ch, "exec:" + cmd);
+        return ch;
     }
 
-    public synchronized void write(int id, int remoteId, byte[] data) {
-        if (mState != State.CONNECTED) {
+    public SyncChannel openSync() {
+        SyncChannel ch = new SyncChannel(this, mSeq.getAndIncrement());
+        open(ch, "sync:");
+        return ch;
+    }
+
+    public void write(int id, int remoteId, ByteBuf buf) {
+        NettyConnection conn = mConn;
+        if (mState != State.CONNECTED || conn == null) {
+            buf.release();
             throw new IllegalStateException();
         }
 
-        mConn.write(new Message(WRTE, id, remoteId, data));
+        conn.write(new Message(WRTE, id, remoteId, buf));
+    }
+
+    public void write(int id, int remoteId, byte[] data) {
+        write(id, remoteId, Unpooled.wrappedBuffer(data));
+    }
+
+    public void close(int id, int remoteId) {
+        conn().write(new Message(CLSE, id, remoteId));
     }
 
-    public synchronized void close(int id, int remoteId) {
-        mConn.write(new Message(CLSE, id, remoteId));
+    // Acknowledges a WRTE, or with delayed_ack gives bytes back to the device's
+    // send window.
+    public void sendReady(int id, int remoteId, int bytes) {
+        if (mDelayedAck) {
+            NettyConnection conn = conn();
+            ByteBuf buf = conn.alloc().buffer(4).writeIntLE(bytes);
+            conn.write(new Message(OKAY, id, remoteId, buf));
+        } else {
+            conn().write(new Message(OKAY, id, remoteId));
+        }
     }
 
-    public synchronized State getState() {
+    public State getState() {
         return mState;
     }
 
+    public ByteBufAllocator alloc() {
+        return conn().alloc();
+    }
+
+    // Largest WRTE payload accepted by the device, as negotiated in CNXN.
+    public int maxPayload() {
+        return mMaxData;
+    }
+
+    // Features advertised by the device in its CNXN banner.
+    public Set<String> features() {
+        return mFeatures;
+    }
+
+    public boolean hasFeature(String feature) {
+        return mFeatures.contains(feature);
+    }
+
+    // Size of the receive window offered to the device on each stream, or 0 if
+    // every WRTE is acknowledged on its own.
+    public int receiveWindow() {
+        return mDelayedAck ? RECEIVE_WINDOW : 0;
+    }
+
+    // Listeners of the promise are notified on the connection's event loop.
+    public <V> Promise<V> newPromise() {
+        return executor().newPromise();
+    }
+
+    // The connection's event loop. Frames written from it reach the socket in
+    // the order they are written, while writes from other threads are queued.
+    public EventExecutor executor() {
+        return conn().executor();
+    }
+
     @Override
     public void onConnected(NettyConnection conn) {
-        conn.write(new Message(CNCX, VERSION, MAXDATA));
+        byte[] banner = ("host::features=" + FEATURES + "\0").getBytes();
+        conn.write(new Message(CNCX, VERSION, MAXDATA, banner));
     }
 
     @Override
-    public synchronized void onClosed(NettyConnection conn) {
+    public void onClosed(NettyConnection conn) {
         reset();
 
-        if (mListener != null) {
-            mListener.onClosed(this);
+        ConnectionListener listener = mListener;
+        if (listener != null) {
+            listener.onClosed(this);
         }
     }
 
     @Override
-    public synchronized void onMessage(NettyConnection conn, Message msg) throws Exception {
+    public void onMessage(NettyConnection conn, Message msg) throws Exception {
         switch (msg.command()) {
             case AUTH:
                 assertProtocol(msg.arg0() == AUTH_TOKEN);
@@ -174,11 +381,15 @@ public class Connection implements NettyConnection.ConnectionListener {
                     throw new ProtocolException("Unsupported ADB Protocol Version.");
                 }
 
+                conn.setChecksum(Math.min(msg.arg0(), VERSION) < VERSION_SKIP_CHECKSUM);
+                mMaxData = Math.min(msg.arg1(), MAXDATA);
+                mFeatures = parseFeatures(msg.data());
+                mDelayedAck = hasFeature(FEATURE_DELAYED_ACK);
                 onConnected();
                 break;
 
             case OKAY:
-                onChannelOkay(msg.arg1(), msg.arg0());
+                onChannelOkay(msg.arg1(), msg.arg0(), msg.data());
                 break;
 
             case WRTE:
@@ -196,24 +407,33 @@ public class Connection implements NettyConnection.ConnectionListener {
     }
 
     @Override
-    public synchronized void onException(NettyConnection conn, Throwable cause) {
+    public void onException(NettyConnection conn, Throwable cause) {
         reset();
 
-        if (mListener != null) {
-            mListener.onException(this, cause);
+        ConnectionListener listener = mListener;
+        if (listener != null) {
+            listener.onException(this, cause);
         }
     }
 
-    private void onAuth(byte[] token) throws IOException {
-        switch (mState) {
-            case CONNECTING:
+    private void onAuth(ByteBuf token) throws IOException {
+        State state;
+        synchronized (this) {
+            state = mState;
+            if (state == State.CONNECTING) {
                 mState = State.AUTH_SIGNATURE;
-                mConn.write(new Message(AUTH, AUTH_SIGNATURE, 0, mAuth.sign(token)));
+            }
+        }
+
+        switch (state) {
+            case CONNECTING:
+                conn().write(new Message(AUTH, AUTH_SIGNATURE, 0, mAuth.sign(ByteBufUtil.getBytes(token))));
                 break;
 
             case AUTH_SIGNATURE:
-                if (mListener != null) {
-                    mListener.onAuth(this, mAuth.getPublicKeyDigest());
+                ConnectionListener listener = mListener;
+                if (listener != null) {
+                    listener.onAuth(this, mAuth.getPublicKeyDigest());
                 }
                 break;
 
@@ -223,18 +443,35 @@ public class Connection implements NettyConnection.ConnectionListener {
     }
 
     private void onConnected() {
-        mState = State.CONNECTED;
+        synchronized (this) {
+            mState = State.CONNECTED;
+        }
 
-        if (mListener != null) {
-            mListener.onConnected(this);
+        ConnectionListener listener = mListener;
+        if (listener != null) {
+            listener.onConnected(this);
         }
     }
 
-    private void onChannelOkay(int id, int remoteId) throws IOException {
+    // With delayed_ack, the payload holds the number of bytes the device is
+    // ready for: the initial send window on open, then each window update.
+    private void onChannelOkay(int id, int remoteId, ByteBuf data) throws IOException {
         Channel s = mChannels.get(id);
         assertProtocol(s != null);
+
+        // The update is a signed delta, its sign says nothing about the mode
+        boolean windowed = mDelayedAck;
+        int bytes = 0;
+        if (windowed) {
+            assertProtocol(data.readableBytes() == 4);
+            bytes = data.getIntLE(data.readerIndex());
+        }
+
         if (s.remoteId() == -1) {
-            s.onOpened(remoteId);
+            s.onOpened(remoteId, windowed, bytes);
+        } else {
+            assertProtocol(s.remoteId() == remoteId);
+            s.onAck(windowed, bytes);
         }
     }
 
@@ -242,39 +479,69 @@ public class Connection implements NettyConnection.ConnectionListener {
         Channel s = mChannels.get(id);
         if (s != null) {
             assertProtocol(s.remoteId() == remoteId);
-            mChannels.remove(id);
-            s.onClosed();
+            if (mChannels.remove(id, s)) {
+                s.dispatchClosed();
+            }
         }
     }
 
-    private void onChannelData(int id, int remoteId, byte[] data) throws IOException {
+    private void onChannelData(int id, int remoteId, ByteBuf data) throws IOException {
         Channel s = mChannels.get(id);
         assertProtocol(s != null && s.remoteId() == remoteId);
-        sendReady(id, remoteId);
-        s.onData(data);
+        s.dispatchData(data);
     }
 
-    private int open(String destination) {
+    // The channel is registered first, so its OKAY can never arrive before it
+    // is known.
+    private void open(Channel ch, String destination) {
         assertState(State.CONNECTED);
 
-        int id = mSeq++;
-        mConn.write(new Message(OPEN, id, 0, (destination + "\0").getBytes()));
-        return id;
+        mChannels.put(ch.id(), ch);
+        try {
+            conn().write(new Message(OPEN, ch.id(), receiveWindow(), (destination + "\0").getBytes()));
+        } catch (RuntimeException e) {
+            mChannels.remove(ch.id());
+            throw e;
+        }
+    }
+
+    private NettyConnection conn() {
+        NettyConnection conn = mConn;
+        if (conn == null) {
+            throw new IllegalStateException();
+        }
+        return conn;
     }
 
     private void reset() {
-        mState = State.IDLE;
+        synchronized (this) {
+            mState = State.IDLE;
+            mFeatures = Collections.emptySet();
+            mDelayedAck = false;
+        }
 
-        for (Channel ch : mChannels.values()) {
-            if (ch.isOpened()) {
-                ch.onClosed();
+        for (Integer id : mChannels.keySet()) {
+            Channel ch = mChannels.remove(id);
+            if (ch != null) {
+                ch.dispatchClosed();
             }
         }
-        mChannels.clear();
     }
 
-    private void sendReady(int id, int remoteId) {
-        mConn.write(new Message(OKAY, id, remoteId));
+    // device::ro.product.name=x;ro.product.model=y;ro.product.device=z;features=a,b
+    private static Set<String> parseFeatures(ByteBuf banner) {
+        String s = banner.toString(Charset.forName("UTF-8"));
+        int start = s.indexOf("::");
+        if (start >= 0) {
+            for (String prop : s.substring(start + 2).split(";")) {
+                prop = prop.trim().replace("\0", "");
+                if (prop.startsWith("features=")) {
+                    String[] features = prop.substring("features=".length()).split(",");
+                    return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(features)));
+                }
+            }
+        }
+        return Collections.<String>emptySet();
     }
 
     private void assertProtocol(boolean expression) throws ProtocolException {
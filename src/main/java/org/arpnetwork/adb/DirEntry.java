@@ -0,0 +1,49 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.nio.charset.Charset;
+
+import io.netty.buffer.ByteBuf;
+
+// A directory entry from LIST or LIS2. Listings reuse one instance for every
+// entry, copy it if it has to outlive the callback.
+public class DirEntry extends Stat {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public String name;
+
+    void readFrom(ByteBuf buf, boolean v2) {
+        if (v2) {
+            readFrom(buf);
+        } else {
+            error = 0;
+            dev = 0;
+            ino = 0;
+            nlink = 0;
+            uid = 0;
+            gid = 0;
+            atime = 0;
+            ctime = 0;
+            mode = buf.readUnsignedIntLE();
+            size = buf.readUnsignedIntLE();
+            mtime = buf.readUnsignedIntLE();
+        }
+
+        int length = buf.readIntLE();
+        name = buf.readCharSequence(length, UTF_8).toString();
+    }
+}
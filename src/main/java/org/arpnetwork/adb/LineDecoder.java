@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+
+import io.netty.buffer.ByteBuf;
+
+// Splits a byte stream into lines, which may span any number of decode calls.
+// Lines are handed out as views of an internal buffer, without the line
+// terminator, and are only valid during the call. Not thread safe.
+public class LineDecoder {
+    // Longer lines are delivered in pieces of this many chars
+    public static final int LINE_MAX = 64 * 1024;
+
+    private static final int INITIAL_SIZE = 1024;
+
+    public interface LineListener {
+        void onLine(CharSequence line);
+    }
+
+    private CharsetDecoder mDecoder;
+    private LineListener mListener;
+
+    // Decoded chars, in write mode. Everything before mScanned has been
+    // searched for line ends already.
+    private CharBuffer mChars;
+    private CharBuffer mLine;
+    private int mScanned;
+
+    // Bytes of a character split across decode calls
+    private ByteBuffer mLeftover;
+
+    public LineDecoder(Charset charset, LineListener listener) {
+        mDecoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        mListener = listener;
+
+        mChars = CharBuffer.allocate(INITIAL_SIZE);
+        mLine = mChars.duplicate();
+        mLeftover = ByteBuffer.allocate(16);
+    }
+
+    public void decode(ByteBuf data) {
+        if (data.nioBufferCount() == 1) {
+            decode(data.nioBuffer());
+        } else {
+            for (ByteBuffer in : data.nioBuffers()) {
+                decode(in);
+            }
+        }
+    }
+
+    public void decode(ByteBuffer in) {
+        // Complete the split character a byte at a time
+        while (mLeftover.position() > 0 && in.hasRemaining()) {
+            mLeftover.put(in.get());
+            mLeftover.flip();
+            decodeChars(mLeftover, false);
+            mLeftover.compact();
+        }
+
+        decodeChars(in, false);
+        if (in.hasRemaining()) {
+            mLeftover.put(in);
+        }
+    }
+
+    // Ends the stream, delivering what is left as a final line.
+    public void flush() {
+        mLeftover.flip();
+        decodeChars(mLeftover, true);
+        mLeftover.clear();
+
+        while (mDecoder.flush(mChars).isOverflow()) {
+            grow();
+        }
+        if (mChars.position() > 0) {
+            deliver(0, mChars.position());
+        }
+
+        mChars.clear();
+        mScanned = 0;
+        mDecoder.reset();
+    }
+
+    private void decodeChars(ByteBuffer in, boolean endOfInput) {
+        while (true) {
+            CoderResult result = mDecoder.decode(in, mChars, endOfInput);
+            scan();
+            if (!result.isOverflow()) {
+                break;
+            }
+            if (!mChars.hasRemaining()) {
+                grow();
+            }
+        }
+    }
+
+    private void scan() {
+        int start = 0;
+        int end = mChars.position();
+        char[] chars = mChars.array();
+        for (int i = mScanned; i < end; ++i) {
+            if (chars[i] == '\n') {
+                int lineEnd = i > start && chars[i - 1] == '\r' ? i - 1 : i;
+                deliver(start, lineEnd);
+                start = i + 1;
+            }
+        }
+
+        if (start > 0) {
+            mChars.flip();
+            mChars.position(start);
+            mChars.compact();
+        }
+        mScanned = mChars.position();
+    }
+
+    private void grow() {
+        if (mChars.capacity() >= LINE_MAX) {
+            deliver(0, mChars.position());
+            mChars.clear();
+            mScanned = 0;
+            return;
+        }
+
+        CharBuffer chars = CharBuffer.allocate(mChars.capacity() * 2);
+        mChars.flip();
+        chars.put(mChars);
+        mChars = chars;
+        mLine = mChars.duplicate();
+    }
+
+    private void deliver(int start, int end) {
+        mLine.clear();
+        mLine.position(start);
+        mLine.limit(end);
+        mListener.onLine(mLine);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.nio.CharBuffer;
+
+import io.netty.buffer.ByteBuf;
+
+// A logger_entry record as written by logcat -B. Instances are reused by
+// LogcatReader, copy what is needed beyond the sink call.
+public class LogEntry {
+    // v1 and v2 records do not tell
+    public static final int LOG_ID_UNKNOWN = -1;
+    public static final int LOG_ID_MAIN = 0;
+    public static final int LOG_ID_RADIO = 1;
+    public static final int LOG_ID_EVENTS = 2;
+    public static final int LOG_ID_SYSTEM = 3;
+    public static final int LOG_ID_CRASH = 4;
+    public static final int LOG_ID_STATS = 5;
+    public static final int LOG_ID_SECURITY = 6;
+    public static final int LOG_ID_KERNEL = 7;
+
+    public int pid;
+    public int tid;
+    public int sec;
+    public int nsec;
+    // Log buffer
+    public int lid;
+    // The euid for v2 records, 0 for v1 and v3
+    public int uid;
+
+    // Text buffers only, events, stats and security records are binary
+    public int priority;
+    public CharBuffer tag;
+    public CharBuffer message;
+
+    // The raw record payload
+    public ByteBuf payload;
+
+    public boolean isBinary() {
+        return lid == LOG_ID_EVENTS || lid == LOG_ID_STATS || lid == LOG_ID_SECURITY;
+    }
+
+    public long timeMillis() {
+        return (sec & 0xFFFFFFFFL) * 1000 + nsec / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%d.%09d %d %d %d %s: %s]", sec & 0xFFFFFFFFL, nsec, pid, tid, priority, tag, message);
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.net.ProtocolException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ByteProcessor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+
+// Follows the device log through "exec:logcat -B", decoding the binary records
+// as they arrive. The sink is called on the connection's event loop with one
+// reused LogEntry, whose tag, message and payload are only valid during the
+// call.
+public class LogcatReader {
+    // v1 records have no hdr_size and a 20 byte header
+    private static final int HEADER_V1_SIZE = 20;
+    private static final int HEADER_MIN = 4;
+
+    // Largest record logd hands out, LOGGER_ENTRY_MAX_LEN
+    private static final int PAYLOAD_MAX = 5 * 1024;
+
+    private static final int SDK_LOGD = 21;
+    private static final ShellLimits SDK_LIMITS = new ShellLimits(64, 0, 10, TimeUnit.SECONDS);
+
+    public interface Sink {
+        void onEntry(LogEntry entry);
+
+        void onClosed();
+    }
+
+    private Connection mConn;
+    private Sink mSink;
+
+    // Guarded by this
+    private RawChannel mChannel;
+    private boolean mStarted;
+    private boolean mStopped;
+
+    private volatile boolean mLogd = true;
+
+    // Only touched on the event loop
+    private ByteBuf mBuf;
+    private boolean mFailed;
+    private LogEntry mEntry;
+    private CharsetDecoder mDecoder;
+
+    public LogcatReader(Connection conn, Sink sink) {
+        mConn = conn;
+        mSink = sink;
+
+        mEntry = new LogEntry();
+        mEntry.tag = CharBuffer.allocate(256);
+        mEntry.message = CharBuffer.allocate(PAYLOAD_MAX);
+        mDecoder = Charset.forName("UTF-8").newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    // Extra logcat options, e.g. "-b all" or "-T 100", already shell quoted.
+    // The device's API level is looked up first: 24 byte headers carry the log
+    // id from logd (API 21) on, the euid before.
+    public void start(final String options) {
+        synchronized (this) {
+            if (mStarted) {
+                throw new IllegalStateException();
+            }
+            mStarted = true;
+        }
+
+        mConn.execute("getprop ro.build.version.sdk", SDK_LIMITS).addListener(new FutureListener<ShellResult>() {
+            @Override
+            public void operationComplete(Future<ShellResult> future) {
+                if (future.isSuccess()) {
+                    try {
+                        mLogd = Integer.parseInt(future.getNow().stdout.trim()) >= SDK_LOGD;
+                    } catch (NumberFormatException e) {
+                        // Assume a current device
+                    }
+                }
+                open(options);
+            }
+        });
+    }
+
+    public void stop() {
+        RawChannel ch;
+        synchronized (this) {
+            mStopped = true;
+            ch = mChannel;
+        }
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    private void open(String options) {
+        String cmd = "logcat -B";
+        if (options != null && !options.isEmpty()) {
+            cmd += " " + options;
+        }
+
+        RawChannel ch = null;
+        synchronized (this) {
+            if (!mStopped) {
+                try {
+                    ch = mConn.openExec(cmd, new Channel.Initializer<RawChannel>() {
+                        @Override
+                        public void init(RawChannel ch) {
+                            ch.setBufferListener(new RawChannel.RawBufferListener() {
+                                @Override
+                                public void onRaw(RawChannel ch, ByteBuf data) {
+                                    onData(ch, data);
+                                }
+                            });
+                            ch.setStreamListener(new Channel.ChannelListener() {
+                                @Override
+                                public void onOpened(Channel ch) {
+                                }
+
+                                @Override
+                                public void onClosed(Channel ch) {
+                                    release();
+                                    mSink.onClosed();
+                                }
+                            });
+                        }
+                    });
+                } catch (IllegalStateException e) {
+                    // Disconnected meanwhile
+                }
+                mChannel = ch;
+            }
+        }
+
+        if (ch == null) {
+            mSink.onClosed();
+        }
+    }
+
+    // A malformed record closes the channel, not the connection. Nothing more
+    // is decoded once it has been seen.
+    private void onData(RawChannel ch, ByteBuf data) {
+        if (mFailed) {
+            return;
+        }
+
+        ByteBuf buf = data;
+        if (mBuf != null) {
+            mBuf.writeBytes(data);
+            buf = mBuf;
+        }
+
+        try {
+            while (decode(buf)) {
+            }
+        } catch (ProtocolException e) {
+            mFailed = true;
+            release();
+            ch.close();
+            return;
+        }
+
+        if (buf == data) {
+            if (data.isReadable()) {
+                mBuf = mConn.alloc().buffer(Math.max(data.readableBytes(), 4096));
+                mBuf.writeBytes(data);
+            }
+        } else if (!mBuf.isReadable()) {
+            release();
+        } else {
+            mBuf.discardSomeReadBytes();
+        }
+    }
+
+    private boolean decode(ByteBuf buf) throws ProtocolException {
+        if (buf.readableBytes() < HEADER_MIN) {
+            return false;
+        }
+
+        int start = buf.readerIndex();
+        int len = buf.getUnsignedShortLE(start);
+        int hdrSize = buf.getUnsignedShortLE(start + 2);
+        if (hdrSize == 0) {
+            hdrSize = HEADER_V1_SIZE;
+        } else if (hdrSize < HEADER_V1_SIZE) {
+            throw new ProtocolException("Bad logger_entry hdr_size: " + hdrSize);
+        }
+        if (buf.readableBytes() < hdrSize + len) {
+            return false;
+        }
+
+        LogEntry e = mEntry;
+        e.pid = buf.getIntLE(start + 4);
+        e.tid = buf.getIntLE(start + 8);
+        e.sec = buf.getIntLE(start + 12);
+        e.nsec = buf.getIntLE(start + 16);
+        // v2 (kernel logger): euid at 20. v3: lid at 20. v4: lid and uid.
+        if (hdrSize >= 28 || (hdrSize >= 24 && mLogd)) {
+            e.lid = buf.getIntLE(start + 20);
+            e.uid = hdrSize >= 28 ? buf.getIntLE(start + 24) : 0;
+        } else {
+            e.lid = LogEntry.LOG_ID_UNKNOWN;
+            e.uid = hdrSize >= 24 ? buf.getIntLE(start + 20) : 0;
+        }
+        e.payload = buf.slice(start + hdrSize, len);
+
+        e.priority = 0;
+        e.tag.clear();
+        e.message.clear();
+        if (!e.isBinary() && len > 0) {
+            // <priority:1><tag\0><message\0>
+            ByteBuf payload = e.payload;
+            e.priority = payload.getByte(0);
+            int tagEnd = payload.forEachByte(1, len - 1, ByteProcessor.FIND_NUL);
+            if (tagEnd < 0) {
+                tagEnd = len;
+            }
+            int msgEnd = len;
+            if (tagEnd < len && payload.getByte(len - 1) == 0) {
+                msgEnd = len - 1;
+            }
+            e.tag = decodeText(payload, 1, tagEnd - 1, e.tag);
+            e.message = decodeText(payload, Math.min(tagEnd + 1, msgEnd), Math.max(msgEnd - tagEnd - 1, 0), e.message);
+        }
+        e.tag.flip();
+        e.message.flip();
+
+        buf.skipBytes(hdrSize + len);
+        mSink.onEntry(e);
+        return true;
+    }
+
+    private CharBuffer decodeText(ByteBuf buf, int index, int length, CharBuffer out) {
+        int max = (int) (length * mDecoder.maxCharsPerByte()) + 1;
+        if (out.capacity() < max) {
+            out = CharBuffer.allocate(max);
+        }
+        mDecoder.reset();
+        mDecoder.decode(buf.nioBuffer(index, length), out, true);
+        mDecoder.flush(out);
+        return out;
+    }
+
+    private void release() {
+        if (mBuf != null) {
+            mBuf.release();
+            mBuf = null;
+        }
+    }
+}
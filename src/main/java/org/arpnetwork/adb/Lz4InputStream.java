@@ -0,0 +1,350 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+import net.jpountz.xxhash.StreamingXXHash32;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+// Decodes LZ4 frames, including frames of linked blocks as adbd writes them.
+// lz4-java's LZ4FrameInputStream only takes independent blocks, and its block
+// decompressors cannot refer back into earlier output, so blocks are decoded
+// here into a window which keeps the last 64 KB of output. Malformed input
+// fails with ProtocolException. Not thread safe.
+class Lz4InputStream extends InputStream {
+    private static final int MAGIC = 0x184D2204;
+    private static final int SKIPPABLE_MAGIC = 0x184D2A50;
+    private static final int SKIPPABLE_MASK = 0xFFFFFFF0;
+
+    private static final int FLG_VERSION = 0x40;
+    private static final int FLG_VERSION_MASK = 0xC0;
+    private static final int FLG_BLOCK_INDEPENDENCE = 0x20;
+    private static final int FLG_BLOCK_CHECKSUM = 0x10;
+    private static final int FLG_CONTENT_SIZE = 0x08;
+    private static final int FLG_CONTENT_CHECKSUM = 0x04;
+    private static final int FLG_DICT_ID = 0x01;
+
+    private static final int UNCOMPRESSED = 0x80000000;
+    // Furthest a match may refer back
+    private static final int HISTORY = 64 * 1024;
+    private static final int MIN_MATCH = 4;
+
+    private InputStream mIn;
+    private XXHash32 mHash;
+    private StreamingXXHash32 mContentHash;
+
+    // Settings of the current frame, none between frames
+    private boolean mInFrame;
+    private boolean mLinked;
+    private boolean mBlockChecksum;
+    private boolean mContentChecksum;
+    private int mBlockMax;
+
+    // Decoded output: history before mRead, unread bytes up to mWrite
+    private byte[] mWindow;
+    private int mRead;
+    private int mWrite;
+    private byte[] mBlock;
+    private byte[] mHeader = new byte[16];
+    private boolean mEnded;
+
+    Lz4InputStream(InputStream in) {
+        mIn = in;
+        XXHashFactory factory = XXHashFactory.fastestInstance();
+        mHash = factory.hash32();
+        mContentHash = factory.newStreamingHash32(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (mRead == mWrite) {
+            if (mEnded || !nextBlock()) {
+                mEnded = true;
+                return -1;
+            }
+        }
+
+        int n = Math.min(len, mWrite - mRead);
+        System.arraycopy(mWindow, mRead, b, off, n);
+        mRead += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return mWrite - mRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    // Decodes the next block into the window. Returns false at the end of the
+    // input, which must not fall inside a frame.
+    private boolean nextBlock() throws IOException {
+        while (!mInFrame) {
+            if (!readFrameHeader()) {
+                return false;
+            }
+        }
+
+        readFully(mHeader, 0, 4);
+        int size = getIntLE(mHeader, 0);
+        if (size == 0) {
+            endFrame();
+            return true;
+        }
+
+        boolean uncompressed = (size & UNCOMPRESSED) != 0;
+        size &= ~UNCOMPRESSED;
+        if (size > mBlockMax) {
+            throw new ProtocolException("LZ4 block too large: " + size);
+        }
+        readFully(mBlock, 0, size);
+        if (mBlockChecksum) {
+            readFully(mHeader, 0, 4);
+            if (mHash.hash(mBlock, 0, size, 0) != getIntLE(mHeader, 0)) {
+                throw new ProtocolException("LZ4 block checksum mismatch");
+            }
+        }
+
+        // Room for a whole block, after the history a linked block may use
+        if (!mLinked) {
+            mWrite = 0;
+        } else if (mWrite + mBlockMax > mWindow.length) {
+            int keep = Math.min(mWrite, HISTORY);
+            System.arraycopy(mWindow, mWrite - keep, mWindow, 0, keep);
+            mWrite = keep;
+        }
+        mRead = mWrite;
+
+        int start = mWrite;
+        if (uncompressed) {
+            System.arraycopy(mBlock, 0, mWindow, mWrite, size);
+            mWrite += size;
+        } else {
+            mWrite = decodeBlock(mBlock, size, mWindow, mWrite, mWrite + mBlockMax, mLinked ? 0 : mWrite);
+        }
+        if (mContentChecksum) {
+            mContentHash.update(mWindow, start, mWrite - start);
+        }
+        return true;
+    }
+
+    // Returns false if the input ended before a frame began.
+    private boolean readFrameHeader() throws IOException {
+        int n = 0;
+        while (n < 4) {
+            int r = mIn.read(mHeader, n, 4 - n);
+            if (r < 0) {
+                if (n == 0) {
+                    return false;
+                }
+                throw new EOFException();
+            }
+            n += r;
+        }
+
+        int magic = getIntLE(mHeader, 0);
+        if ((magic & SKIPPABLE_MASK) == SKIPPABLE_MAGIC) {
+            readFully(mHeader, 0, 4);
+            skipFully(getIntLE(mHeader, 0) & 0xFFFFFFFFL);
+            return true;
+        }
+        if (magic != MAGIC) {
+            throw new ProtocolException("Not an LZ4 frame");
+        }
+
+        // FLG, BD, then the optional content size and dictionary id
+        readFully(mHeader, 0, 2);
+        int flg = mHeader[0] & 0xFF;
+        int bd = mHeader[1] & 0xFF;
+        int length = 2;
+        if ((flg & FLG_CONTENT_SIZE) != 0) {
+            length += 8;
+        }
+        if ((flg & FLG_DICT_ID) != 0) {
+            length += 4;
+        }
+        readFully(mHeader, 2, length - 2);
+        int hc = mIn.read();
+        if (hc < 0) {
+            throw new EOFException();
+        }
+
+        if ((flg & FLG_VERSION_MASK) != FLG_VERSION || (flg & 0x02) != 0 || (bd & 0x8F) != 0) {
+            throw new ProtocolException("Unsupported LZ4 frame");
+        }
+        if ((flg & FLG_DICT_ID) != 0) {
+            throw new ProtocolException("LZ4 dictionaries are not supported");
+        }
+        if (((mHash.hash(mHeader, 0, length, 0) >> 8) & 0xFF) != hc) {
+            throw new ProtocolException("LZ4 header checksum mismatch");
+        }
+
+        int blockMaxId = (bd >> 4) & 0x07;
+        if (blockMaxId < 4) {
+            throw new ProtocolException("Unsupported LZ4 block size");
+        }
+        mBlockMax = 1 << (8 + 2 * blockMaxId);
+        mLinked = (flg & FLG_BLOCK_INDEPENDENCE) == 0;
+        mBlockChecksum = (flg & FLG_BLOCK_CHECKSUM) != 0;
+        mContentChecksum = (flg & FLG_CONTENT_CHECKSUM) != 0;
+        mContentHash.reset();
+
+        if (mBlock == null || mBlock.length < mBlockMax) {
+            mBlock = new byte[mBlockMax];
+        }
+        int windowSize = HISTORY + mBlockMax;
+        if (mWindow == null || mWindow.length < windowSize) {
+            mWindow = new byte[windowSize];
+        }
+        // A new frame starts without history
+        mRead = 0;
+        mWrite = 0;
+        mInFrame = true;
+        return true;
+    }
+
+    private void endFrame() throws IOException {
+        if (mContentChecksum) {
+            readFully(mHeader, 0, 4);
+            if (mContentHash.getValue() != getIntLE(mHeader, 0)) {
+                throw new ProtocolException("LZ4 content checksum mismatch");
+            }
+        }
+        mInFrame = false;
+    }
+
+    // Decodes one compressed block from src into dst at dp. Matches may refer
+    // back as far as dictStart. Returns the end of the output.
+    static int decodeBlock(byte[] src, int srcLength, byte[] dst, int dp, int dstEnd, int dictStart)
+            throws ProtocolException {
+        int sp = 0;
+        while (true) {
+            if (sp >= srcLength) {
+                throw malformed();
+            }
+            int token = src[sp++] & 0xFF;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (sp >= srcLength) {
+                        throw malformed();
+                    }
+                    b = src[sp++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > srcLength - sp || literals > dstEnd - dp) {
+                throw malformed();
+            }
+            System.arraycopy(src, sp, dst, dp, literals);
+            sp += literals;
+            dp += literals;
+
+            // The last sequence has no match
+            if (sp == srcLength) {
+                return dp;
+            }
+
+            if (srcLength - sp < 2) {
+                throw malformed();
+            }
+            int offset = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8;
+            sp += 2;
+            if (offset == 0 || offset > dp - dictStart) {
+                throw malformed();
+            }
+
+            int length = token & 0x0F;
+            if (length == 15) {
+                int b;
+                do {
+                    if (sp >= srcLength) {
+                        throw malformed();
+                    }
+                    b = src[sp++] & 0xFF;
+                    length += b;
+                } while (b == 255);
+            }
+            length += MIN_MATCH;
+            if (length > dstEnd - dp) {
+                throw malformed();
+            }
+
+            int from = dp - offset;
+            if (offset >= length) {
+                System.arraycopy(dst, from, dst, dp, length);
+                dp += length;
+            } else {
+                // Overlapping, the match repeats the last offset bytes
+                for (int i = 0; i < length; ++i) {
+                    dst[dp++] = dst[from++];
+                }
+            }
+        }
+    }
+
+    private static ProtocolException malformed() {
+        return new ProtocolException("Malformed LZ4 block");
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = mIn.read(b, off, len);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = mIn.skip(n);
+            if (skipped > 0) {
+                n -= skipped;
+            } else if (mIn.read() >= 0) {
+                --n;
+            } else {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static int getIntLE(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+    }
+}
@@ -19,52 +19,74 @@ import java.io.IOException;
 import java.net.ProtocolException;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 
 public class Message {
+    public static final int HEADER_SIZE = 24;
+    // Largest payload we accept, as advertised in our CNCX
+    public static final int MAXDATA = 1024 * 1024;
+
     private int mCommand;
     private int mArg0;
     private int mArg1;
-    private byte[] mData;
+    private ByteBuf mData;
 
     public Message(int command, int arg0, int arg1) {
-        this(command, arg0, arg1, new byte[0]);
+        this(command, arg0, arg1, Unpooled.EMPTY_BUFFER);
     }
 
     public Message(int command, int arg0, int arg1, byte[] data) {
+        this(command, arg0, arg1, Unpooled.wrappedBuffer(data));
+    }
+
+    public Message(int command, int arg0, int arg1, ByteBuf data) {
         mCommand = command;
         mArg0 = arg0;
         mArg1 = arg1;
         mData = data;
     }
 
-    public static Message readFrom(ByteBuf buf) throws IOException {
+    // Returns null until the whole frame has arrived. The payload is a retained
+    // slice of buf, so the message must be released once it has been handled.
+    public static Message readFrom(ByteBuf buf, boolean checksum) throws IOException {
+        if (buf.readableBytes() < HEADER_SIZE) {
+            return null;
+        }
+
+        int length = buf.getIntLE(buf.readerIndex() + 12);
+        if (length < 0 || length > MAXDATA) {
+            throw new ProtocolException();
+        }
+        if (buf.readableBytes() < HEADER_SIZE + length) {
+            return null;
+        }
+
         // Header
         int command = buf.readIntLE();
         int arg0 = buf.readIntLE();
         int arg1 = buf.readIntLE();
-        int length = buf.readIntLE();
+        buf.skipBytes(4);
         int crc32 = buf.readIntLE();
         int magic = buf.readIntLE();
 
         // Body
-        ByteBuf body = buf.readBytes(length);
-
-        Message msg = new Message(command, arg0, arg1, body.array());
-        if (msg.checksum() != crc32 || msg.magic() != magic) {
+        Message msg = new Message(command, arg0, arg1, buf.readRetainedSlice(length));
+        if ((checksum && msg.checksum() != crc32) || msg.magic() != magic) {
+            msg.release();
             throw new ProtocolException();
         }
 
         return msg;
     }
 
-    public void writeTo(ByteBuf buf) {
+    // Only the header is written, the payload goes to the socket as it is.
+    public void writeHeaderTo(ByteBuf buf, boolean checksum) {
         buf.writeIntLE(mCommand);
         buf.writeIntLE(mArg0);
         buf.writeIntLE(mArg1);
-        buf.writeIntLE(mData.length);
-        buf.writeIntLE(checksum());
+        buf.writeIntLE(mData.readableBytes());
+        buf.writeIntLE(checksum ? checksum() : 0);
         buf.writeIntLE(magic());
-        buf.writeBytes(mData);
     }
 
     public int command() {
@@ -79,29 +101,24 @@ public class Message {
         return mArg1;
     }
 
-    public byte[] data() {
-        return this.mData;
+    public ByteBuf data() {
+        return mData;
+    }
+
+    public void release() {
+        mData.release();
     }
 
     @Override
     public String toString() {
-        return String.format("[%s, arg0=%d arg1=%d size=%d]", Util.commandToString(mCommand), mArg0, mArg1, mData.length);
+        return String.format("[%s, arg0=%d arg1=%d size=%d]", Util.commandToString(mCommand), mArg0, mArg1, mData.readableBytes());
     }
 
     private int checksum() {
-        int sum = 0;
-        for (int i = 0; i < mData.length; ++i) {
-            byte b = mData[i];
-            sum += toUnsignedInt(b);
-        }
-        return sum;
+        return Util.checksum(mData, mData.readerIndex(), mData.readableBytes());
     }
 
     private int magic() {
         return ~mCommand;
     }
-
-    private static int toUnsignedInt(byte x) {
-        return x & 0xFF;
-    }
 }
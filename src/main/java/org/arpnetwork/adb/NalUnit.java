@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import io.netty.buffer.ByteBuf;
+
+// An H.264 NAL unit in Annex B form, start code included, or a continuation of
+// one. The data is a slice of the channel's receive buffer, release the unit
+// once done.
+public class NalUnit {
+    public static final int TYPE_SLICE = 1;
+    public static final int TYPE_IDR = 5;
+    public static final int TYPE_SEI = 6;
+    public static final int TYPE_SPS = 7;
+    public static final int TYPE_PPS = 8;
+    public static final int TYPE_AUD = 9;
+
+    private ByteBuf mData;
+    private long mTimestamp;
+
+    NalUnit(ByteBuf data, long timestamp) {
+        mData = data;
+        mTimestamp = timestamp;
+    }
+
+    public ByteBuf content() {
+        return mData;
+    }
+
+    // System.nanoTime() at which the first bytes of the unit were received.
+    public long timestamp() {
+        return mTimestamp;
+    }
+
+    // 0 for a continuation
+    public int type() {
+        int index = mData.readerIndex();
+        int code = startCodeLength(mData, index, mData.writerIndex());
+        if (code <= 0 || mData.readableBytes() <= code) {
+            return 0;
+        }
+        return mData.getByte(index + code) & 0x1F;
+    }
+
+    // The rest of the previous unit, which was emitted before its end arrived.
+    // It has no start code and is meant to be appended to that unit.
+    public boolean isContinuation() {
+        return startCodeLength(mData, mData.readerIndex(), mData.writerIndex()) == 0;
+    }
+
+    public boolean isKeyFrame() {
+        int type = type();
+        return type == TYPE_IDR || type == TYPE_SPS || type == TYPE_PPS;
+    }
+
+    // Whether a decoder can start from this unit
+    public boolean isGroupStart() {
+        int type = type();
+        return type == TYPE_SPS || type == TYPE_IDR;
+    }
+
+    // Length of the start code at index, leading zeros included: 0 if there is
+    // none, -1 if the bytes up to end are all zeros and cannot tell yet.
+    static int startCodeLength(ByteBuf buf, int index, int end) {
+        int i = index;
+        while (i < end && buf.getByte(i) == 0) {
+            ++i;
+        }
+        if (i == end) {
+            return -1;
+        }
+        return i - index >= 2 && buf.getByte(i) == 1 ? i + 1 - index : 0;
+    }
+
+    public void release() {
+        mData.release();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[NAL %d, %d]", type(), mData.readableBytes());
+    }
+}
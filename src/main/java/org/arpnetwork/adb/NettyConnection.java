@@ -18,32 +18,37 @@ package org.arpnetwork.adb;
 
 import java.lang.ref.WeakReference;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.MessageToByteEncoder;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
 
 public class NettyConnection {
     private static final String ENCODER_NAME = "encoder";
     private static final String DECODER_NAME = "decoder";
+    private static final String FLUSH_NAME = "flush";
     private static final int CONNECT_TIMEOUT = 1000;
 
     private ConnectionListener mListener;
     private String mHost;
     private int mPort;
 
-    private EventLoopGroup mWorkerGroup;
+    private Transport mTransport;
+    private Transport mOwnTransport;
     private ChannelFuture mChannelFuture;
     private GenericFutureListener<ChannelFuture> mChannelFutureListener;
 
@@ -58,8 +63,15 @@ public class NettyConnection {
     }
 
     public NettyConnection(String host, int port) {
+        this(host, port, null);
+    }
+
+    // Without a shared transport, the connection runs on a private single thread
+    // event loop which is shut down on close.
+    public NettyConnection(String host, int port, Transport transport) {
         mHost = host;
         mPort = port;
+        mTransport = transport;
     }
 
     public void setListener(ConnectionListener listener) {
@@ -67,11 +79,15 @@ public class NettyConnection {
     }
 
     public void connect() {
-        mWorkerGroup = new NioEventLoopGroup();
+        if (mTransport == null) {
+            mOwnTransport = new Transport(1);
+        }
+        final Transport transport = mTransport != null ? mTransport : mOwnTransport;
 
         Bootstrap b = new Bootstrap();
-        b.group(mWorkerGroup);
-        b.channel(NioSocketChannel.class);
+        b.group(transport.group());
+        b.channel(transport.channelClass());
+        b.option(ChannelOption.ALLOCATOR, transport.alloc());
         b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT);
         b.option(ChannelOption.SO_KEEPALIVE, true);
         b.option(ChannelOption.TCP_NODELAY, true);
@@ -80,8 +96,12 @@ public class NettyConnection {
             public void initChannel(SocketChannel ch) {
                 ch.pipeline()
                         .addLast(DECODER_NAME, new MessageDecoder())
-                        .addLast(ENCODER_NAME, new MessageEncoder())
-                        .addLast(new ConnectionHandler(NettyConnection.this));
+                        .addLast(ENCODER_NAME, new MessageEncoder());
+                if (transport.isFlushBatching()) {
+                    ch.pipeline().addLast(FLUSH_NAME,
+                            new FlushBatchHandler(transport.flushBytes(), transport.flushDelay()));
+                }
+                ch.pipeline().addLast(new ConnectionHandler(NettyConnection.this));
             }
         });
 
@@ -103,17 +123,37 @@ public class NettyConnection {
             mChannelFuture.sync().channel().close().sync();
         } catch (InterruptedException e) {
         }
-        mWorkerGroup.shutdownGracefully();
+        if (mOwnTransport != null) {
+            mOwnTransport.shutdown();
+            mOwnTransport = null;
+        }
     }
 
     public void write(Message msg) {
         if (!mChannelFuture.isSuccess()) {
+            msg.release();
             throw new IllegalStateException();
         }
 
         mChannelFuture.channel().writeAndFlush(msg);
     }
 
+    // Checksums are computed for outbound frames until the peer's version is
+    // known, inbound ones are only verified once an old peer has been negotiated.
+    public void setChecksum(boolean checksum) {
+        io.netty.channel.Channel ch = mChannelFuture.channel();
+        ((MessageDecoder) ch.pipeline().get(DECODER_NAME)).setChecksum(checksum);
+        ((MessageEncoder) ch.pipeline().get(ENCODER_NAME)).setChecksum(checksum);
+    }
+
+    public ByteBufAllocator alloc() {
+        return mChannelFuture.channel().alloc();
+    }
+
+    public EventExecutor executor() {
+        return mChannelFuture.channel().eventLoop();
+    }
+
     private void onConnected() {
         if (mListener != null) {
             mListener.onConnected(this);
@@ -168,9 +208,14 @@ public class NettyConnection {
 
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-            NettyConnection conn = mConn.get();
-            if (conn != null) {
-                conn.onMessage((Message) msg);
+            Message m = (Message) msg;
+            try {
+                NettyConnection conn = mConn.get();
+                if (conn != null) {
+                    conn.onMessage(m);
+                }
+            } finally {
+                m.release();
             }
         }
 
@@ -183,17 +228,153 @@ public class NettyConnection {
         }
     }
 
-    private static class MessageDecoder extends ReplayingDecoder<Void> {
+    // Holds back flushes while inbound frames are being dispatched, so all the
+    // OKAYs of one read cycle leave in a single syscall. Outside of a read cycle
+    // the flush is delayed until enough bytes are pending or maxDelay expires.
+    static class FlushBatchHandler extends ChannelDuplexHandler {
+        private int mMaxBytes;
+        private int mMaxDelay;
+
+        private ChannelHandlerContext mCtx;
+        private boolean mReading;
+        private boolean mFlushPending;
+        private int mPendingBytes;
+        private ScheduledFuture<?> mFlushFuture;
+        private Runnable mFlushTask;
+
+        public FlushBatchHandler(int maxBytes, int maxDelay) {
+            mMaxBytes = maxBytes;
+            mMaxDelay = maxDelay;
+            mFlushTask = new Runnable() {
+                @Override
+                public void run() {
+                    mFlushFuture = null;
+                    if (mFlushPending && !mReading) {
+                        flushNow(mCtx);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            mCtx = ctx;
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            flushIfPending(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            mReading = true;
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            mReading = false;
+            flushIfPending(ctx);
+            ctx.fireChannelReadComplete();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (!ctx.channel().isWritable()) {
+                flushIfPending(ctx);
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            if (msg instanceof Message) {
+                mPendingBytes += Message.HEADER_SIZE + ((Message) msg).data().readableBytes();
+            }
+            ctx.write(msg, promise);
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            mFlushPending = true;
+            if (mPendingBytes >= mMaxBytes) {
+                flushNow(ctx);
+            } else if (!mReading && mFlushFuture == null) {
+                mFlushFuture = ctx.executor().schedule(mFlushTask, mMaxDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+            flushIfPending(ctx);
+            ctx.close(promise);
+        }
+
+        @Override
+        public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+            flushIfPending(ctx);
+            ctx.disconnect(promise);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            flushIfPending(ctx);
+            ctx.fireExceptionCaught(cause);
+        }
+
+        private void flushIfPending(ChannelHandlerContext ctx) {
+            if (mFlushPending) {
+                flushNow(ctx);
+            }
+        }
+
+        private void flushNow(ChannelHandlerContext ctx) {
+            if (mFlushFuture != null) {
+                mFlushFuture.cancel(false);
+                mFlushFuture = null;
+            }
+            mFlushPending = false;
+            mPendingBytes = 0;
+            ctx.flush();
+        }
+    }
+
+    static class MessageDecoder extends ByteToMessageDecoder {
+        private volatile boolean mChecksum;
+
+        public void setChecksum(boolean checksum) {
+            mChecksum = checksum;
+        }
+
         @Override
         protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-            out.add(Message.readFrom(in));
+            Message msg = Message.readFrom(in, mChecksum);
+            if (msg != null) {
+                out.add(msg);
+            }
         }
     }
 
-    private static class MessageEncoder extends MessageToByteEncoder<Message> {
+    private static class MessageEncoder extends MessageToMessageEncoder<Message> {
+        private volatile boolean mChecksum = true;
+
+        public void setChecksum(boolean checksum) {
+            mChecksum = checksum;
+        }
+
         @Override
-        protected void encode(ChannelHandlerContext ctx, Message msg, ByteBuf out) {
-            msg.writeTo(out);
+        protected void encode(ChannelHandlerContext ctx, Message msg, List<Object> out) {
+            ByteBuf header = ctx.alloc().ioBuffer(Message.HEADER_SIZE);
+            msg.writeHeaderTo(header, mChecksum);
+            out.add(header);
+
+            ByteBuf data = msg.data();
+            if (data.isReadable()) {
+                out.add(data);
+            } else {
+                data.release();
+            }
         }
     }
 }
@@ -17,8 +17,13 @@
 package org.arpnetwork.adb;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.Future;
 
 public class RawChannel extends Channel {
 
@@ -26,7 +31,21 @@ public class RawChannel extends Channel {
         void onRaw(RawChannel ch, byte[] data);
     }
 
+    // Receives data as slices of the inbound frames, without copying. The
+    // buffer is released once the call returns, retain it to keep it.
+    public interface RawBufferListener {
+        void onRaw(RawChannel ch, ByteBuf data);
+    }
+
+    // Receives data a line at a time. The lines are views of a reused buffer,
+    // valid only during the call.
+    public interface RawLineListener {
+        void onLine(RawChannel ch, CharSequence line);
+    }
+
     private RawListener mListener;
+    private RawBufferListener mBufferListener;
+    private LineDecoder mLines;
 
     public RawChannel(Connection conn, int id) {
         super(conn, id);
@@ -36,9 +55,65 @@ public class RawChannel extends Channel {
         mListener = listener;
     }
 
-    public void write(String data) {
+    public void setBufferListener(RawBufferListener listener) {
+        mBufferListener = listener;
+    }
+
+    public void setLineListener(RawLineListener listener) {
+        setLineListener(listener, Charset.forName("UTF-8"));
+    }
+
+    public void setLineListener(final RawLineListener listener, Charset charset) {
+        mLines = new LineDecoder(charset, new LineDecoder.LineListener() {
+            @Override
+            public void onLine(CharSequence line) {
+                listener.onLine(RawChannel.this, line);
+            }
+        });
+    }
+
+    public Future<Void> write(String data) {
         RawMessage msg = new RawMessage(data);
-        write(msg.encodeToBytes());
+        return write(msg.encode());
+    }
+
+    public long write(InputStream in) throws IOException, InterruptedException {
+        return write(Channels.newChannel(in));
+    }
+
+    // Copies src until its end, one frame at a time, blocking while the channel
+    // is not writable. Returns the number of bytes written. Must not be called
+    // from the connection's event loop.
+    public long write(ReadableByteChannel src) throws IOException, InterruptedException {
+        long total = 0;
+        while (true) {
+            int max = maxPayload();
+            ByteBuf buf = alloc().ioBuffer(max);
+            int n;
+            try {
+                n = Util.read(src, buf, max);
+            } catch (IOException e) {
+                buf.release();
+                throw e;
+            }
+            if (n < 0) {
+                buf.release();
+                return total;
+            }
+
+            write(buf);
+            total += n;
+            awaitWritable();
+        }
+    }
+
+    // The last line needs no terminator.
+    @Override
+    public void onClosed() {
+        if (mLines != null) {
+            mLines.flush();
+        }
+        super.onClosed();
     }
 
     @Override
@@ -48,9 +123,19 @@ public class RawChannel extends Channel {
 
     @Override
     protected void onRead(Object msg) throws IOException {
-        if (mListener != null) {
-            RawMessage m = (RawMessage) msg;
-            mListener.onRaw(this, m.data());
+        RawMessage m = (RawMessage) msg;
+        try {
+            if (mBufferListener != null) {
+                mBufferListener.onRaw(this, m.content().duplicate());
+            }
+            if (mListener != null) {
+                mListener.onRaw(this, m.data());
+            }
+            if (mLines != null) {
+                mLines.decode(m.content());
+            }
+        } finally {
+            m.release();
         }
     }
 }
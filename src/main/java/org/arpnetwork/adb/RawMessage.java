@@ -17,39 +17,54 @@
 package org.arpnetwork.adb;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 
 public class RawMessage {
-    private byte[] mData;
+    private ByteBuf mData;
 
     public RawMessage(String data) {
         this(data.getBytes());
     }
 
     public RawMessage(byte[] data) {
+        this(Unpooled.wrappedBuffer(data));
+    }
+
+    public RawMessage(ByteBuf data) {
         mData = data;
     }
 
+    // The payload is a retained slice of buf, release the message once done.
     public static RawMessage decodeFrom(ByteBuf buf) {
         RawMessage msg = null;
 
         int length = buf.readableBytes();
         if (length > 0) {
-            msg = new RawMessage(buf.readBytes(length).array());
+            msg = new RawMessage(buf.readRetainedSlice(length));
         }
 
         return msg;
     }
 
-    public byte[] encodeToBytes() {
+    public ByteBuf encode() {
         return mData;
     }
 
     public byte[] data() {
+        return ByteBufUtil.getBytes(mData, mData.readerIndex(), mData.readableBytes(), false);
+    }
+
+    public ByteBuf content() {
         return mData;
     }
 
+    public void release() {
+        mData.release();
+    }
+
     @Override
     public String toString() {
-        return String.format("[RAW, \"%s\"]", new String(mData).replaceAll("\n", "\\\\n"));
+        return String.format("[RAW, \"%s\"]", new String(data()).replaceAll("\n", "\\\\n"));
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+// Runs tasks one at a time and in submission order on a backing executor,
+// which may be shared by any number of these.
+class SerialExecutor implements Executor {
+    private final Executor mExecutor;
+
+    // Guarded by mTasks
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mRunning;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (mTasks) {
+                    task = mTasks.poll();
+                    if (task == null) {
+                        mRunning = false;
+                        return;
+                    }
+                }
+
+                boolean completed = false;
+                try {
+                    task.run();
+                    completed = true;
+                } finally {
+                    // Let the backing executor see the failure, and carry on
+                    // with the rest in a new run.
+                    if (!completed) {
+                        schedule();
+                    }
+                }
+            }
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (mTasks) {
+            mTasks.add(task);
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        try {
+            mExecutor.execute(mDrain);
+        } catch (RuntimeException e) {
+            synchronized (mTasks) {
+                mTasks.clear();
+                mRunning = false;
+            }
+            throw e;
+        }
+    }
+}
@@ -16,9 +16,15 @@
 package org.arpnetwork.adb;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ProtocolException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.Future;
 
 public class ShellChannel extends Channel {
 
@@ -30,7 +36,34 @@ public class ShellChannel extends Channel {
         void onExit(ShellChannel ch, int code);
     }
 
+    // Receives output as slices of the inbound frames, without copying. The
+    // buffers are released once the call returns, retain them to keep them.
+    public interface ShellBufferListener {
+        void onStdout(ShellChannel ch, ByteBuf data);
+
+        void onStderr(ShellChannel ch, ByteBuf data);
+
+        void onExit(ShellChannel ch, int code);
+    }
+
+    // Receives output a line at a time. The lines are views of a reused
+    // buffer, valid only during the call.
+    public interface ShellLineListener {
+        void onStdout(ShellChannel ch, CharSequence line);
+
+        void onStderr(ShellChannel ch, CharSequence line);
+
+        void onExit(ShellChannel ch, int code);
+    }
+
+    // Largest packet adbd's shell protocol reads at once, header included.
+    private static final int PACKET_MAX = 32 * 1024;
+
     private ShellListener mListener;
+    private ShellBufferListener mBufferListener;
+    private ShellLineListener mLineListener;
+    private LineDecoder mStdoutLines;
+    private LineDecoder mStderrLines;
 
     public ShellChannel(Connection conn, int id) {
         super(conn, id);
@@ -40,9 +73,88 @@ public class ShellChannel extends Channel {
         mListener = listener;
     }
 
-    public void write(String data) {
-        ShellMessage msg = new ShellMessage(ShellMessage.STDIN, data);
-        write(msg.encodeToBytes());
+    public void setBufferListener(ShellBufferListener listener) {
+        mBufferListener = listener;
+    }
+
+    public void setLineListener(ShellLineListener listener) {
+        setLineListener(listener, Charset.forName("UTF-8"));
+    }
+
+    public void setLineListener(final ShellLineListener listener, Charset charset) {
+        mStdoutLines = new LineDecoder(charset, new LineDecoder.LineListener() {
+            @Override
+            public void onLine(CharSequence line) {
+                listener.onStdout(ShellChannel.this, line);
+            }
+        });
+        mStderrLines = new LineDecoder(charset, new LineDecoder.LineListener() {
+            @Override
+            public void onLine(CharSequence line) {
+                listener.onStderr(ShellChannel.this, line);
+            }
+        });
+        mLineListener = listener;
+    }
+
+    public Future<Void> write(String data) {
+        return writeStdin(Unpooled.wrappedBuffer(data.getBytes()));
+    }
+
+    public long writeStdin(InputStream in) throws IOException, InterruptedException {
+        return writeStdin(Channels.newChannel(in));
+    }
+
+    // Copies src to stdin until its end, one packet at a time, blocking while
+    // the channel is not writable. Returns the number of bytes written. Must not
+    // be called from the connection's event loop.
+    public long writeStdin(ReadableByteChannel src) throws IOException, InterruptedException {
+        int max = PACKET_MAX - ShellMessage.HEADER_SIZE;
+        long total = 0;
+        while (true) {
+            ByteBuf buf = alloc().ioBuffer(PACKET_MAX);
+            int n;
+            try {
+                buf.writeByte(ShellMessage.STDIN);
+                buf.writeIntLE(0);
+                n = Util.read(src, buf, max);
+            } catch (IOException e) {
+                buf.release();
+                throw e;
+            }
+            if (n < 0) {
+                buf.release();
+                return total;
+            }
+
+            buf.setIntLE(1, n);
+            write(buf);
+            total += n;
+            awaitWritable();
+        }
+    }
+
+    // The command sees the end of its input.
+    public Future<Void> closeStdin() {
+        return write(new ShellMessage(ShellMessage.CLOSE_STDIN, Unpooled.EMPTY_BUFFER).encode(alloc()));
+    }
+
+    private Future<Void> writeStdin(ByteBuf data) {
+        int max = PACKET_MAX - ShellMessage.HEADER_SIZE;
+        while (data.readableBytes() > max) {
+            write(new ShellMessage(ShellMessage.STDIN, data.readRetainedSlice(max)).encode(alloc()));
+        }
+        return write(new ShellMessage(ShellMessage.STDIN, data).encode(alloc()));
+    }
+
+    // The last line needs no terminator, even when no EXIT came.
+    @Override
+    public void onClosed() {
+        if (mLineListener != null) {
+            mStdoutLines.flush();
+            mStderrLines.flush();
+        }
+        super.onClosed();
     }
 
     @Override
@@ -52,24 +164,78 @@ public class ShellChannel extends Channel {
 
     @Override
     protected void onRead(Object msg) throws IOException {
-        if (mListener != null) {
-            ShellMessage m = (ShellMessage) msg;
-            switch (m.id()) {
-                case ShellMessage.STDOUT:
-                    mListener.onStdout(this, m.data());
-                    break;
-
-                case ShellMessage.STDERR:
-                    mListener.onStderr(this, m.data());
-                    break;
-
-                case ShellMessage.EXIT:
-                    mListener.onExit(this, m.code());
-                    break;
-
-                default:
-                    throw new ProtocolException();
+        ShellMessage m = (ShellMessage) msg;
+        try {
+            if (mBufferListener != null) {
+                dispatch(m, mBufferListener);
+            }
+            if (mListener != null) {
+                dispatch(m, mListener);
             }
+            if (mLineListener != null) {
+                dispatch(m, mLineListener);
+            }
+        } finally {
+            m.release();
+        }
+    }
+
+    private void dispatch(ShellMessage m, ShellBufferListener listener) throws IOException {
+        switch (m.id()) {
+            case ShellMessage.STDOUT:
+                listener.onStdout(this, m.content().duplicate());
+                break;
+
+            case ShellMessage.STDERR:
+                listener.onStderr(this, m.content().duplicate());
+                break;
+
+            case ShellMessage.EXIT:
+                listener.onExit(this, m.code());
+                break;
+
+            default:
+                throw new ProtocolException();
+        }
+    }
+
+    private void dispatch(ShellMessage m, ShellLineListener listener) throws IOException {
+        switch (m.id()) {
+            case ShellMessage.STDOUT:
+                mStdoutLines.decode(m.content());
+                break;
+
+            case ShellMessage.STDERR:
+                mStderrLines.decode(m.content());
+                break;
+
+            case ShellMessage.EXIT:
+                mStdoutLines.flush();
+                mStderrLines.flush();
+                listener.onExit(this, m.code());
+                break;
+
+            default:
+                throw new ProtocolException();
+        }
+    }
+
+    private void dispatch(ShellMessage m, ShellListener listener) throws IOException {
+        switch (m.id()) {
+            case ShellMessage.STDOUT:
+                listener.onStdout(this, m.data());
+                break;
+
+            case ShellMessage.STDERR:
+                listener.onStderr(this, m.data());
+                break;
+
+            case ShellMessage.EXIT:
+                listener.onExit(this, m.code());
+                break;
+
+            default:
+                throw new ProtocolException();
         }
     }
 }
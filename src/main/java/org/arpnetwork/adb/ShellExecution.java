@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+// Collects the output of one Connection.execute command within its limits.
+// All callbacks run on the connection's event loop.
+class ShellExecution implements ShellChannel.ShellBufferListener, Channel.ChannelListener {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ShellChannel mChannel;
+    private long mTimeoutMillis;
+    private EventExecutor mExecutor;
+    private Promise<ShellResult> mPromise;
+    private Output mStdout;
+    private Output mStderr;
+    private boolean mTimedOut;
+
+    ShellExecution(ShellChannel ch, ShellLimits limits, ByteBufAllocator alloc, EventExecutor executor) {
+        mChannel = ch;
+        mTimeoutMillis = limits.timeoutMillis();
+        mExecutor = executor;
+        mPromise = executor.newPromise();
+        mStdout = new Output(alloc, limits);
+        mStderr = new Output(alloc, limits);
+    }
+
+    // Starts the deadline, once the channel has been opened. It is cancelled
+    // as soon as the promise completes, even if that happened first.
+    void start() {
+        if (mTimeoutMillis == 0) {
+            return;
+        }
+
+        final ScheduledFuture<?> deadline = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mTimedOut = true;
+                mChannel.close();
+                finish(-1);
+            }
+        }, mTimeoutMillis, TimeUnit.MILLISECONDS);
+        mPromise.addListener(new FutureListener<ShellResult>() {
+            @Override
+            public void operationComplete(Future<ShellResult> future) {
+                deadline.cancel(false);
+            }
+        });
+    }
+
+    Promise<ShellResult> promise() {
+        return mPromise;
+    }
+
+    @Override
+    public void onStdout(ShellChannel ch, ByteBuf data) {
+        mStdout.write(data);
+    }
+
+    @Override
+    public void onStderr(ShellChannel ch, ByteBuf data) {
+        mStderr.write(data);
+    }
+
+    @Override
+    public void onExit(ShellChannel ch, int code) {
+        finish(code);
+        ch.close();
+    }
+
+    @Override
+    public void onOpened(Channel ch) {
+    }
+
+    @Override
+    public void onClosed(Channel ch) {
+        if (!mPromise.isDone()) {
+            mPromise.tryFailure(new ClosedChannelException());
+        }
+        release();
+    }
+
+    private void finish(int exitCode) {
+        if (mPromise.isDone()) {
+            return;
+        }
+
+        ShellResult result = new ShellResult(exitCode, mStdout.toString(), mStderr.toString());
+        result.stdoutDropped = mStdout.dropped();
+        result.stderrDropped = mStderr.dropped();
+        result.timedOut = mTimedOut;
+        release();
+        mPromise.trySuccess(result);
+    }
+
+    private void release() {
+        mStdout.release();
+        mStderr.release();
+    }
+
+    // The first headBytes are kept as they come, later bytes go round a ring of
+    // tailBytes. Buffers are taken from the allocator as output arrives.
+    private static class Output {
+        private ByteBufAllocator mAlloc;
+        private int mHeadBytes;
+        private int mTailBytes;
+
+        private ByteBuf mHead;
+        private ByteBuf mTail;
+        private int mTailPosition;
+        private boolean mTailFull;
+        private long mDropped;
+        private boolean mReleased;
+
+        Output(ByteBufAllocator alloc, ShellLimits limits) {
+            mAlloc = alloc;
+            mHeadBytes = limits.headBytes();
+            mTailBytes = limits.tailBytes();
+        }
+
+        void write(ByteBuf data) {
+            if (mReleased) {
+                return;
+            }
+
+            int n = Math.min(data.readableBytes(), mHeadBytes - (mHead != null ? mHead.writerIndex() : 0));
+            if (n > 0) {
+                if (mHead == null) {
+                    mHead = mAlloc.buffer(Math.min(mHeadBytes, 4096), mHeadBytes);
+                }
+                mHead.writeBytes(data, n);
+            }
+            if (data.isReadable()) {
+                writeTail(data);
+            }
+        }
+
+        private void writeTail(ByteBuf data) {
+            int length = data.readableBytes();
+            if (mTailBytes == 0) {
+                mDropped += length;
+                return;
+            }
+            if (mTail == null) {
+                mTail = mAlloc.buffer(mTailBytes, mTailBytes);
+            }
+
+            // Bytes pushed out of the ring
+            long kept = mTailFull ? mTailBytes : mTailPosition;
+            mDropped += Math.max(kept + length - mTailBytes, 0);
+
+            if (length >= mTailBytes) {
+                mTail.setBytes(0, data, data.readerIndex() + length - mTailBytes, mTailBytes);
+                mTailPosition = 0;
+                mTailFull = true;
+            } else {
+                int first = Math.min(length, mTailBytes - mTailPosition);
+                mTail.setBytes(mTailPosition, data, data.readerIndex(), first);
+                mTail.setBytes(0, data, data.readerIndex() + first, length - first);
+                mTailPosition += length;
+                if (mTailPosition >= mTailBytes) {
+                    mTailPosition -= mTailBytes;
+                    mTailFull = true;
+                }
+            }
+            data.skipBytes(length);
+        }
+
+        long dropped() {
+            return mDropped;
+        }
+
+        void release() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+
+            if (mHead != null) {
+                mHead.release();
+            }
+            if (mTail != null) {
+                mTail.release();
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            if (mHead != null) {
+                sb.append(mHead.toString(UTF_8));
+            }
+            if (mTail != null) {
+                if (mTailFull) {
+                    sb.append(mTail.toString(mTailPosition, mTailBytes - mTailPosition, UTF_8));
+                }
+                sb.append(mTail.toString(0, mTailPosition, UTF_8));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.util.concurrent.TimeUnit;
+
+// Bounds on what Connection.execute keeps of a command's output and how long
+// the command may run. Past headBytes + tailBytes, only the first headBytes and
+// the last tailBytes of each stream are kept.
+public class ShellLimits {
+    public static final ShellLimits DEFAULT = new ShellLimits(64 * 1024, 64 * 1024, 0, TimeUnit.MILLISECONDS);
+
+    private final int mHeadBytes;
+    private final int mTailBytes;
+    private final long mTimeoutMillis;
+
+    public ShellLimits(int headBytes, int tailBytes, long timeout, TimeUnit unit) {
+        if (headBytes < 0 || tailBytes < 0 || timeout < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        mHeadBytes = headBytes;
+        mTailBytes = tailBytes;
+        mTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    public int headBytes() {
+        return mHeadBytes;
+    }
+
+    public int tailBytes() {
+        return mTailBytes;
+    }
+
+    // 0 for no deadline
+    public long timeoutMillis() {
+        return mTimeoutMillis;
+    }
+}
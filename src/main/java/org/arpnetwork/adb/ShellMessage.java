@@ -1,6 +1,8 @@
 package org.arpnetwork.adb;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 
 public class ShellMessage {
@@ -8,28 +10,36 @@ public class ShellMessage {
     public static final int STDOUT = 1;
     public static final int STDERR = 2;
     public static final int EXIT = 3;
+    public static final int CLOSE_STDIN = 4;
+
+    public static final int HEADER_SIZE = 5;
 
     private int mId;
-    private byte[] mData;
+    private ByteBuf mData;
 
     public ShellMessage(int id, String data) {
         this(id, data.getBytes());
     }
 
     public ShellMessage(int id, byte[] data) {
+        this(id, Unpooled.wrappedBuffer(data));
+    }
+
+    public ShellMessage(int id, ByteBuf data) {
         mId = id;
         mData = data;
     }
 
+    // The payload is a retained slice of buf, release the message once done.
     public static ShellMessage decodeFrom(ByteBuf buf) {
         ShellMessage msg = null;
 
         buf.markReaderIndex();
-        if (buf.readableBytes() >= 5) {
+        if (buf.readableBytes() >= HEADER_SIZE) {
             int id = buf.readByte();
             int length = buf.readIntLE();
             if (buf.readableBytes() >= length) {
-                msg = new ShellMessage(id, buf.readBytes(length).array());
+                msg = new ShellMessage(id, buf.readRetainedSlice(length));
             }
         }
 
@@ -40,12 +50,19 @@ public class ShellMessage {
         return msg;
     }
 
-    public byte[] encodeToBytes() {
-        ByteBuf buf = Unpooled.buffer(5 + mData.length);
-        buf.writeByte(mId);
-        buf.writeIntLE(mData.length);
-        buf.writeBytes(mData);
-        return buf.array();
+    // The payload is not copied, it becomes a component of the returned buffer.
+    public ByteBuf encode(ByteBufAllocator alloc) {
+        int length = mData.readableBytes();
+
+        ByteBuf header = alloc.buffer(HEADER_SIZE);
+        header.writeByte(mId);
+        header.writeIntLE(length);
+        if (length == 0) {
+            mData.release();
+            return header;
+        }
+
+        return alloc.compositeBuffer(2).addComponents(true, header, mData);
     }
 
     public int id() {
@@ -53,15 +70,23 @@ public class ShellMessage {
     }
 
     public byte[] data() {
+        return ByteBufUtil.getBytes(mData, mData.readerIndex(), mData.readableBytes(), false);
+    }
+
+    public ByteBuf content() {
         return mData;
     }
 
+    public void release() {
+        mData.release();
+    }
+
     public int code() {
         if (mId != EXIT) {
             throw new IllegalStateException();
         }
 
-        return mData[0];
+        return mData.getByte(mData.readerIndex());
     }
 
     @Override
@@ -84,12 +109,16 @@ public class ShellMessage {
                 id = "EXIT";
                 break;
 
+            case CLOSE_STDIN:
+                id = "CLOSE_STDIN";
+                break;
+
             default:
                 break;
         }
 
         if (mId != EXIT) {
-            return String.format("[%s, \"%s\"]", id, new String(mData).replaceAll("\n", "\\\\n"));
+            return String.format("[%s, \"%s\"]", id, new String(data()).replaceAll("\n", "\\\\n"));
         } else {
             return String.format("[%s, %d]", id, code());
         }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+public class ShellResult {
+    public int exitCode;
+    public String stdout;
+    public String stderr;
+    // Output left out between the kept head and tail, see ShellLimits
+    public long stdoutDropped;
+    public long stderrDropped;
+    // The deadline passed and the command was closed, exitCode is -1
+    public boolean timedOut;
+
+    public ShellResult(int exitCode, String stdout, String stderr) {
+        this.exitCode = exitCode;
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%d, %d bytes out, %d bytes err%s]", exitCode, stdout.length(), stderr.length(),
+                timedOut ? ", timed out" : "");
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.net.ProtocolException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+
+// Runs commands one after another in a single long-lived device shell, saving
+// the channel setup and fork of openShell per command. Each command is
+// followed by markers on stdout and stderr which end its output; any number
+// of commands may be in flight. Commands share the shell's state, e.g. its
+// working directory, and must not exit it.
+public class ShellSession {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Connection mConn;
+    private ShellChannel mChannel;
+    private String mPrefix;
+    private AtomicLong mSeq;
+
+    // Guarded by this, in the order the commands were written
+    private ArrayDeque<Pending> mPending;
+    private boolean mClosed;
+
+    // Output not yet attributed to a command, only touched on the event loop,
+    // and how much of it is known not to hold the next marker.
+    private ByteBuf mOut;
+    private ByteBuf mErr;
+    private int mOutScanned;
+    private int mErrScanned;
+
+    public ShellSession(Connection conn) {
+        mConn = conn;
+        mPrefix = String.format("__ARP_%016x_", new Random().nextLong());
+        mSeq = new AtomicLong();
+        mPending = new ArrayDeque<>();
+        // Allocated first, output may arrive before openShell returns
+        mOut = conn.alloc().buffer();
+        mErr = conn.alloc().buffer();
+
+        try {
+            mChannel = conn.openShell("", new Channel.Initializer<ShellChannel>() {
+                @Override
+                public void init(ShellChannel ch) {
+                    ch.setBufferListener(new ShellChannel.ShellBufferListener() {
+                        @Override
+                        public void onStdout(ShellChannel ch, ByteBuf data) {
+                            mOut.writeBytes(data);
+                            onOutput(true);
+                        }
+
+                        @Override
+                        public void onStderr(ShellChannel ch, ByteBuf data) {
+                            mErr.writeBytes(data);
+                            onOutput(false);
+                        }
+
+                        @Override
+                        public void onExit(ShellChannel ch, int code) {
+                            fail(new ProtocolException("Shell exited: " + code));
+                        }
+                    });
+                    ch.setStreamListener(new Channel.ChannelListener() {
+                        @Override
+                        public void onOpened(Channel ch) {
+                        }
+
+                        @Override
+                        public void onClosed(Channel ch) {
+                            fail(new ClosedChannelException());
+                            mOut.release();
+                            mErr.release();
+                        }
+                    });
+                }
+            });
+        } catch (RuntimeException e) {
+            mOut.release();
+            mErr.release();
+            throw e;
+        }
+    }
+
+    public Future<ShellResult> execute(String cmd) {
+        String marker = mPrefix + mSeq.getAndIncrement();
+        Pending p = new Pending(("\n" + marker + " ").getBytes(UTF_8), ("\n" + marker + "\n").getBytes(UTF_8));
+        p.promise = mConn.newPromise();
+
+        // The command is quoted for eval, so a syntax error in it fails only
+        // this command; "command" keeps that error from ending the shell. Stdin
+        // is not shared with the command. The markers start on a line of their
+        // own, the newline before them is not part of the output.
+        String script = String.format("command eval %s </dev/null; printf '\\n%s %%d\\n' $?; printf '\\n%s\\n' >&2\n",
+                Util.shellQuote(cmd), marker, marker);
+
+        // Queued and written under the same lock, so scripts reach stdin in
+        // the order of mPending. The write only queues, it never blocks.
+        Future<Void> written;
+        synchronized (this) {
+            if (mClosed) {
+                return p.promise.setFailure(new ClosedChannelException());
+            }
+            mPending.add(p);
+            written = mChannel.write(script);
+        }
+        written.addListener(new FutureListener<Void>() {
+            @Override
+            public void operationComplete(Future<Void> future) {
+                if (!future.isSuccess()) {
+                    fail(future.cause());
+                }
+            }
+        });
+        return p.promise;
+    }
+
+    public void close() {
+        mChannel.write("exit\n");
+        mChannel.close();
+    }
+
+    private void onOutput(boolean stdout) {
+        ByteBuf buf = stdout ? mOut : mErr;
+        int scanned = stdout ? mOutScanned : mErrScanned;
+        while (true) {
+            Pending p = next(stdout);
+            if (p == null) {
+                // Nothing is waiting for it
+                buf.clear();
+                scanned = 0;
+                break;
+            }
+
+            byte[] marker = stdout ? p.outMarker : p.errMarker;
+            int index = find(buf, buf.readerIndex() + scanned, marker);
+            if (index < 0) {
+                scanned = Math.max(buf.readableBytes() - marker.length + 1, 0);
+                break;
+            }
+
+            int exitCode = 0;
+            int end = index + marker.length;
+            if (stdout) {
+                int eol = buf.indexOf(end, buf.writerIndex(), (byte) '\n');
+                if (eol < 0) {
+                    scanned = index - buf.readerIndex();
+                    break;
+                }
+                exitCode = Integer.parseInt(buf.toString(end, eol - end, UTF_8));
+                end = eol + 1;
+            }
+
+            String output = buf.toString(buf.readerIndex(), index - buf.readerIndex(), UTF_8);
+            buf.readerIndex(end);
+            scanned = 0;
+            complete(p, stdout, output, exitCode);
+        }
+        buf.discardSomeReadBytes();
+
+        if (stdout) {
+            mOutScanned = scanned;
+        } else {
+            mErrScanned = scanned;
+        }
+    }
+
+    private static int find(ByteBuf buf, int from, byte[] marker) {
+        int last = buf.writerIndex() - marker.length;
+        for (int i = from; i <= last; ++i) {
+            i = buf.indexOf(i, last + 1, marker[0]);
+            if (i < 0) {
+                break;
+            }
+
+            int j = 1;
+            while (j < marker.length && buf.getByte(i + j) == marker[j]) {
+                ++j;
+            }
+            if (j == marker.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized Pending next(boolean stdout) {
+        for (Pending p : mPending) {
+            if (stdout ? p.stdout == null : p.stderr == null) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    private void complete(Pending p, boolean stdout, String output, int exitCode) {
+        synchronized (this) {
+            if (stdout) {
+                p.stdout = output;
+                p.exitCode = exitCode;
+            } else {
+                p.stderr = output;
+            }
+            if (p.stdout == null || p.stderr == null) {
+                return;
+            }
+            mPending.remove(p);
+        }
+        p.promise.trySuccess(new ShellResult(p.exitCode, p.stdout, p.stderr));
+    }
+
+    private void fail(Throwable cause) {
+        List<Pending> failed;
+        synchronized (this) {
+            mClosed = true;
+            failed = new ArrayList<>(mPending);
+            mPending.clear();
+        }
+        for (Pending p : failed) {
+            p.promise.tryFailure(cause);
+        }
+    }
+
+    private static class Pending {
+        byte[] outMarker;
+        byte[] errMarker;
+        Promise<ShellResult> promise;
+        String stdout;
+        String stderr;
+        int exitCode;
+
+        Pending(byte[] outMarker, byte[] errMarker) {
+            this.outMarker = outMarker;
+            this.errMarker = errMarker;
+        }
+    }
+}
@@ -4,6 +4,10 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 
 public class Stat {
+    private static final long S_IFMT = 0170000;
+    private static final long S_IFDIR = 0040000;
+    private static final long S_IFREG = 0100000;
+
     public long error;
     public long dev;
     public long ino;
@@ -16,8 +20,40 @@ public class Stat {
     public long mtime;
     public long ctime;
 
+    public Stat() {
+    }
+
     public Stat(byte[] data) {
-        ByteBuf buf = Unpooled.wrappedBuffer(data);
+        this(Unpooled.wrappedBuffer(data));
+    }
+
+    public Stat(ByteBuf data) {
+        readFrom(data.duplicate());
+    }
+
+    public Stat(Stat other) {
+        error = other.error;
+        dev = other.dev;
+        ino = other.ino;
+        mode = other.mode;
+        nlink = other.nlink;
+        uid = other.uid;
+        gid = other.gid;
+        size = other.size;
+        atime = other.atime;
+        mtime = other.mtime;
+        ctime = other.ctime;
+    }
+
+    public boolean isDirectory() {
+        return (mode & S_IFMT) == S_IFDIR;
+    }
+
+    public boolean isFile() {
+        return (mode & S_IFMT) == S_IFREG;
+    }
+
+    void readFrom(ByteBuf buf) {
         error = buf.readUnsignedIntLE();
         dev = buf.readLongLE();
         ino = buf.readLongLE();
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Remote stats remembered for a limited time. Shared by the sync channels of a
+// Connection, see Connection.setStatCache. Files sent through those channels
+// are invalidated. Stats are copied in and out, so callers may modify theirs.
+public class StatCache {
+    private long mTtl;
+    private ConcurrentHashMap<String, Entry> mEntries;
+
+    public StatCache(long ttl, TimeUnit unit) {
+        mTtl = unit.toNanos(ttl);
+        mEntries = new ConcurrentHashMap<>();
+    }
+
+    public Stat get(String path) {
+        Entry e = mEntries.get(path);
+        if (e == null) {
+            return null;
+        }
+        if (System.nanoTime() - e.time > mTtl) {
+            mEntries.remove(path, e);
+            return null;
+        }
+        return new Stat(e.stat);
+    }
+
+    public void put(String path, Stat stat) {
+        mEntries.put(path, new Entry(new Stat(stat), System.nanoTime()));
+    }
+
+    public void invalidate(String path) {
+        mEntries.remove(path);
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+
+    private static class Entry {
+        Stat stat;
+        long time;
+
+        Entry(Stat stat, long time) {
+            this.stat = stat;
+            this.time = time;
+        }
+    }
+}
@@ -15,11 +15,32 @@
  */
 package org.arpnetwork.adb;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import net.jpountz.lz4.LZ4FrameOutputStream;
 
 public class SyncChannel extends Channel {
     // Mode for normal file (664)
@@ -27,68 +48,498 @@ public class SyncChannel extends Channel {
     // Mode for executable file (775)
     public static final int MODE_EXECUTABLE = 33277;
 
+    // Largest DATA packet accepted by the sync service
+    public static final int DATA_MAX = 64 * 1024;
+
+    // Default amount of pulled data buffered before acks are held back
+    public static final int PULL_BUDGET = 4 * 1024 * 1024;
+
+    // DATA packets of an asynchronous push left unacknowledged
+    private static final int PUSH_WINDOW = 16;
+
     private LinkedBlockingQueue<SyncMessage> mMessages;
 
+    // Queued once the channel is closed, wakes up blocked readers
+    private static final SyncMessage CLOSED = new SyncMessage(0, Unpooled.EMPTY_BUFFER);
+
+    private static final int LIST_NONE = 0;
+    private static final int LIST_V1 = 1;
+    private static final int LIST_V2 = 2;
+
+    // Guarded by mMessages. While pulling or listing, DATA or entry bytes not
+    // yet consumed.
+    private int mBudget;
+    private int mBufferedBytes;
+
+    // Replies to LIST and LIS2 need their own decoding until the final DONE.
+    private volatile int mListing;
+
+    // Path of the last SEND, its cached stat is dropped once written.
+    private volatile String mSendPath;
+
+    private volatile boolean mCompression;
+
+    // Guarded by mMessages. Outstanding asynchronous requests, replies are
+    // handed to the head instead of being queued in mMessages.
+    private ArrayDeque<Reply<?>> mReplies;
+
+    public interface ProgressListener {
+        void onProgress(long bytes, long total);
+    }
+
+    public interface ListListener {
+        void onEntry(SyncChannel ch, DirEntry entry);
+    }
+
     public SyncChannel(Connection conn, int id) {
         super(conn, id);
 
         mMessages = new LinkedBlockingQueue<>();
+        mReplies = new ArrayDeque<>();
+    }
+
+    public Future<Void> send(String path, int mode) {
+        mSendPath = path;
+        invalidate(path);
+        return write(new SyncMessage(SyncMessage.SEND, String.format("%s,%d", path, mode)));
+    }
+
+    // SND2: the path, then mode and compression flags in a second request.
+    public Future<Void> send2(String path, int mode, int flags) {
+        mSendPath = path;
+        invalidate(path);
+        write(new SyncMessage(SyncMessage.SND2, path));
+
+        ByteBuf args = alloc().buffer(12);
+        args.writeIntLE(SyncMessage.SND2);
+        args.writeIntLE(mode);
+        args.writeIntLE(flags);
+        return write(args);
+    }
+
+    public Future<Void> recv(String path) {
+        return write(new SyncMessage(SyncMessage.RECV, path));
+    }
+
+    // RCV2: the path, then compression flags in a second request.
+    public Future<Void> recv2(String path, int flags) {
+        write(new SyncMessage(SyncMessage.RCV2, path));
+
+        ByteBuf args = alloc().buffer(8);
+        args.writeIntLE(SyncMessage.RCV2);
+        args.writeIntLE(flags);
+        return write(args);
+    }
+
+    // When enabled and the device supports it, push and pull transfer file
+    // contents LZ4 compressed through SND2 and RCV2.
+    public void setCompression(boolean enabled) {
+        mCompression = enabled;
+    }
+
+    public boolean isCompressing() {
+        return mCompression && hasFeature(Connection.FEATURE_SENDRECV_V2)
+                && hasFeature(Connection.FEATURE_SENDRECV_V2_LZ4);
+    }
+
+    public Future<Void> stat(String path) {
+        return write(new SyncMessage(SyncMessage.STA2, path));
+    }
+
+    // Stats all paths with one round trip: the STA2 requests go out in a single
+    // write and their replies come back in the same order. Paths found in the
+    // connection's StatCache are not requested.
+    public List<Stat> statAll(List<String> paths) throws IOException, InterruptedException {
+        StatCache cache = connection().statCache();
+        List<Stat> stats = new ArrayList<>(paths.size());
+        List<Integer> missing = new ArrayList<>();
+        CompositeByteBuf requests = alloc().compositeBuffer(Integer.MAX_VALUE);
+        for (int i = 0; i < paths.size(); ++i) {
+            Stat st = cache != null ? cache.get(paths.get(i)) : null;
+            if (st == null) {
+                requests.addComponent(true, new SyncMessage(SyncMessage.STA2, paths.get(i)).encode(alloc()));
+                missing.add(i);
+            }
+            stats.add(st);
+        }
+        // One write, so the requests leave in as few frames as possible
+        write(requests);
+
+        for (int i : missing) {
+            Stat st = syncStat();
+            stats.set(i, st);
+            if (cache != null) {
+                cache.put(paths.get(i), st);
+            }
+        }
+        return stats;
+    }
+
+    // Asynchronous requests: the returned futures are completed on the event
+    // loop as replies arrive, no thread is blocked waiting. Blocking calls must
+    // not be made on this channel while any of them is outstanding.
+
+    public Future<Stat> statAsync(String path) {
+        return request(new Reply<Stat>() {
+            @Override
+            boolean onMessage(SyncMessage msg) throws IOException {
+                if (msg.id() != SyncMessage.STA2) {
+                    throw new ProtocolException();
+                }
+                promise.setSuccess(new Stat(msg.content()));
+                return true;
+            }
+        }, new SyncMessage(SyncMessage.STA2, path));
+    }
+
+    // Sends data as the file remote. data is released once written.
+    public Future<Void> pushAsync(ByteBuf data, String remote, int mode, int timestamp) {
+        OkayReply reply = new OkayReply(remote);
+        Future<Void> f = request(reply, null);
+        send(remote, mode);
+        while (data.readableBytes() > DATA_MAX) {
+            writeData(data.readRetainedSlice(DATA_MAX));
+        }
+        writeData(data);
+        failOnError(writeDone(timestamp), reply);
+        return f;
+    }
+
+    // Streams the file in DATA packets, keeping at most PUSH_WINDOW of them
+    // unacknowledged. The file is only read on io, from the first packet on, so
+    // neither the caller nor the event loop is blocked on the disk.
+    public Future<Void> pushAsync(File local, String remote, int mode, Executor io) throws IOException {
+        FileInputStream in = new FileInputStream(local);
+        OkayReply reply = new OkayReply(remote);
+        Future<Void> f = request(reply, null);
+        send(remote, mode);
+        FilePush push = new FilePush(in, (int) (local.lastModified() / 1000), reply, io);
+        try {
+            io.execute(push);
+        } catch (RuntimeException e) {
+            push.finish(e);
+        }
+        return f;
+    }
+
+    public Future<Long> pullAsync(String remote, FileChannel out, Executor io) {
+        return pullAsync(remote, out, io, PULL_BUDGET);
+    }
+
+    // Writes the file to out on io, starting at position 0. At most budget bytes
+    // wait to be written, beyond that acks are held back. The future holds the
+    // number of bytes written.
+    public Future<Long> pullAsync(String remote, FileChannel out, Executor io, int budget) {
+        return request(new FileReply(out, io, budget), new SyncMessage(SyncMessage.RECV, remote));
+    }
+
+    // Uses LIS2 when the device supports it, LIST otherwise. Entries are read
+    // with syncList.
+    public Future<Void> list(String path) {
+        boolean v2 = hasFeature(Connection.FEATURE_LS_V2);
+        mListing = v2 ? LIST_V2 : LIST_V1;
+        synchronized (mMessages) {
+            mBudget = PULL_BUDGET;
+            mBufferedBytes = 0;
+        }
+        return write(new SyncMessage(v2 ? SyncMessage.LIS2 : SyncMessage.LIST, path));
+    }
+
+    // Streams the entries of the pending list request to the listener, which
+    // always receives the same DirEntry instance. At most PULL_BUDGET bytes of
+    // entries are buffered ahead of the listener.
+    public void syncList(ListListener listener) throws IOException, InterruptedException {
+        DirEntry entry = new DirEntry();
+        try {
+            while (true) {
+                SyncMessage msg = take();
+                try {
+                    checkFail(msg);
+                    if (msg.id() == SyncMessage.DONE) {
+                        break;
+                    } else if (msg.id() != SyncMessage.DENT && msg.id() != SyncMessage.DNT2) {
+                        throw new ProtocolException();
+                    }
+
+                    int length = msg.content().readableBytes();
+                    entry.readFrom(msg.content(), msg.id() == SyncMessage.DNT2);
+                    onConsumed(msg.id(), length);
+                } finally {
+                    msg.release();
+                }
+                listener.onEntry(this, entry);
+            }
+        } finally {
+            endBudget();
+        }
     }
 
-    public void send(String path, int mode) {
-        write(new SyncMessage(SyncMessage.SEND, String.format("%s,%d", path, mode)));
+    public Future<Void> writeData(String data) {
+        return writeData(data.getBytes());
     }
 
-    public void recv(String path) {
-        write(new SyncMessage(SyncMessage.RECV, path));
+    public Future<Void> writeData(byte[] data) {
+        return writeData(data, 0, data.length);
     }
 
-    public void stat(String path) {
-        write(new SyncMessage(SyncMessage.STA2, path));
+    public Future<Void> writeData(byte[] data, int offset, int length) {
+        return writeData(Unpooled.wrappedBuffer(data, offset, length));
     }
 
-    public void writeData(String data) {
-        writeData(data.getBytes());
+    // Data of any size is split into DATA packets, the future completes with
+    // the last one.
+    public Future<Void> writeData(ByteBuf data) {
+        while (data.readableBytes() > DATA_MAX) {
+            write(new SyncMessage(data.readRetainedSlice(DATA_MAX)));
+        }
+        return write(new SyncMessage(data));
     }
 
-    public void writeData(byte[] data) {
-        write(new SyncMessage(data));
+    public Future<Void> writeDone(int timestamp) {
+        return write(new SyncMessage(timestamp));
     }
 
-    public void writeData(byte[] data, int offset, int length) {
-        write(new SyncMessage(data, offset, length));
+    // Sends a whole file. DATA packets are read from the file straight into
+    // pooled buffers and pipelined up to the channel's high water mark; the
+    // listener, if any, is called on the event loop as the device acknowledges
+    // them. Must not be called from the connection's event loop.
+    public TransferResult push(File local, String remote, int mode, final ProgressListener listener)
+            throws IOException, InterruptedException {
+        if (isCompressing()) {
+            return pushCompressed(local, remote, mode, listener);
+        }
+
+        long start = System.currentTimeMillis();
+
+        FileInputStream in = new FileInputStream(local);
+        try {
+            FileChannel fc = in.getChannel();
+            final long size = fc.size();
+
+            send(remote, mode);
+            long position = 0;
+            while (position < size) {
+                int length = (int) Math.min(DATA_MAX, size - position);
+                ByteBuf buf = alloc().ioBuffer(SyncMessage.HEADER_SIZE + length);
+                try {
+                    buf.writeIntLE(SyncMessage.DATA);
+                    buf.writeIntLE(length);
+                    readFully(fc, position, buf, length);
+                } catch (IOException e) {
+                    buf.release();
+                    throw e;
+                }
+                position += length;
+
+                Future<Void> f = write(buf);
+                if (listener != null) {
+                    final long bytes = position;
+                    f.addListener(new FutureListener<Void>() {
+                        @Override
+                        public void operationComplete(Future<Void> future) {
+                            if (future.isSuccess()) {
+                                listener.onProgress(bytes, size);
+                            }
+                        }
+                    });
+                }
+                awaitWritable();
+            }
+            writeDone((int) (local.lastModified() / 1000));
+            syncWrite();
+
+            return new TransferResult(size, 1, System.currentTimeMillis() - start);
+        } finally {
+            in.close();
+        }
     }
 
-    public void writeDone(int timestamp) {
-        write(new SyncMessage(timestamp));
+    public TransferResult pull(String remote, File local) throws IOException, InterruptedException {
+        return pull(remote, local, PULL_BUDGET);
+    }
+
+    // Receives a whole file into local. At most budget bytes of DATA are
+    // buffered: beyond that the device's WRTEs are left unacknowledged until the
+    // file has caught up. Must not be called from the connection's event loop.
+    public TransferResult pull(String remote, File local, int budget) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+
+        stat(remote);
+        Stat st = syncStat();
+        if (st.error != 0) {
+            throw new IOException("Failed to stat " + remote + ": " + st.error);
+        }
+
+        RandomAccessFile out = new RandomAccessFile(local, "rw");
+        long position = 0;
+        try {
+            out.setLength(st.size);
+            FileChannel fc = out.getChannel();
+
+            synchronized (mMessages) {
+                mBudget = budget;
+                mBufferedBytes = 0;
+            }
+
+            if (isCompressing()) {
+                recv2(remote, SyncMessage.FLAG_LZ4);
+                position = readCompressed(fc);
+            } else {
+                recv(remote);
+                position = readPlain(fc);
+            }
+        } finally {
+            endBudget();
+
+            if (position != st.size) {
+                out.setLength(position);
+            }
+            out.close();
+        }
+
+        return new TransferResult(position, 1, System.currentTimeMillis() - start);
+    }
+
+    // The compressed stream is cut into DATA packets as it is produced, the
+    // listener is told about file bytes as they are compressed.
+    private TransferResult pushCompressed(File local, String remote, int mode, ProgressListener listener)
+            throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+
+        FileInputStream in = new FileInputStream(local);
+        try {
+            long size = in.getChannel().size();
+
+            send2(remote, mode, SyncMessage.FLAG_LZ4);
+            LZ4FrameOutputStream out = new LZ4FrameOutputStream(new PacketOutputStream(),
+                    LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB);
+            try {
+                byte[] buf = new byte[DATA_MAX];
+                long position = 0;
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                    position += n;
+                    if (listener != null) {
+                        listener.onProgress(position, size);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            writeDone((int) (local.lastModified() / 1000));
+            syncWrite();
+
+            return new TransferResult(size, 1, System.currentTimeMillis() - start);
+        } finally {
+            in.close();
+        }
+    }
+
+    // On a decoding error the rest of the file is read and dropped, so the
+    // channel is left at the next reply.
+    private long readCompressed(FileChannel fc) throws IOException, InterruptedException {
+        long position = 0;
+        PacketInputStream packets = new PacketInputStream();
+        Lz4InputStream in = new Lz4InputStream(packets);
+        try {
+            byte[] buf = new byte[DATA_MAX];
+            int n;
+            while (true) {
+                try {
+                    n = in.read(buf);
+                } catch (ProtocolException | RuntimeException e) {
+                    skipToEnd(packets);
+                    throw e instanceof IOException ? (IOException) e : new ProtocolException(e.toString());
+                }
+                if (n < 0) {
+                    break;
+                }
+
+                ByteBuffer src = ByteBuffer.wrap(buf, 0, n);
+                while (src.hasRemaining()) {
+                    position += fc.write(src, position);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return position;
+    }
+
+    private static void skipToEnd(PacketInputStream packets) {
+        try {
+            packets.skipToEnd();
+        } catch (IOException e) {
+            // The channel is lost, the decoding error is the one to report
+        }
+    }
+
+    private long readPlain(FileChannel fc) throws IOException, InterruptedException {
+        long position = 0;
+        while (true) {
+            SyncMessage msg = take();
+            try {
+                checkFail(msg);
+                if (msg.id() == SyncMessage.DONE) {
+                    break;
+                } else if (msg.id() != SyncMessage.DATA) {
+                    throw new ProtocolException();
+                }
+
+                ByteBuf data = msg.content();
+                int length = data.readableBytes();
+                while (data.isReadable()) {
+                    position += data.readBytes(fc, position, data.readableBytes());
+                }
+                onConsumed(msg.id(), length);
+            } finally {
+                msg.release();
+            }
+        }
+        return position;
     }
 
     public void syncWrite() throws IOException, InterruptedException {
-        SyncMessage msg = mMessages.take();
-        if (msg.id() != SyncMessage.OKAY) {
-            throw new ProtocolException();
+        SyncMessage msg = take();
+        invalidate(mSendPath);
+        try {
+            checkFail(msg);
+            if (msg.id() != SyncMessage.OKAY) {
+                throw new ProtocolException();
+            }
+        } finally {
+            msg.release();
         }
     }
 
     public Stat syncStat() throws IOException, InterruptedException {
-        SyncMessage msg = mMessages.take();
-        if (msg.id() != SyncMessage.STA2) {
-            throw new ProtocolException();
+        SyncMessage msg = take();
+        try {
+            if (msg.id() != SyncMessage.STA2) {
+                throw new ProtocolException();
+            }
+            return new Stat(msg.content());
+        } finally {
+            msg.release();
         }
-        return new Stat(msg.data());
     }
 
     public byte[] readData() throws IOException, InterruptedException {
-        SyncMessage msg = mMessages.take();
-        switch (msg.id()) {
-            case SyncMessage.DATA:
-                return msg.data();
+        SyncMessage msg = take();
+        try {
+            switch (msg.id()) {
+                case SyncMessage.DATA:
+                    return ByteBufUtil.getBytes(msg.content());
 
-            case SyncMessage.DONE:
-                return new byte[0];
+                case SyncMessage.DONE:
+                    return new byte[0];
 
-            default:
-                throw new ProtocolException();
+                default:
+                    throw new ProtocolException();
+            }
+        } finally {
+            msg.release();
         }
     }
 
@@ -96,22 +547,557 @@ public class SyncChannel extends Channel {
         write(new SyncMessage(SyncMessage.QUIT, ""));
     }
 
+    // While listing, only DENT, DNT2 and the final DONE have the entry layout.
+    // Anything else, such as a FAIL, is a plain reply and ends the listing.
     @Override
-    protected Object decode(ByteBuf buf) {
-        return SyncMessage.decodeFrom(buf);
+    protected Object decode(ByteBuf buf) throws IOException {
+        int listing = mListing;
+        if (listing == LIST_NONE) {
+            return SyncMessage.decodeFrom(buf);
+        }
+        if (buf.readableBytes() < 4) {
+            return null;
+        }
+
+        int id = buf.getIntLE(buf.readerIndex());
+        SyncMessage msg;
+        if (id == SyncMessage.DENT || id == SyncMessage.DNT2 || id == SyncMessage.DONE) {
+            msg = SyncMessage.decodeDentFrom(buf, listing == LIST_V2);
+        } else {
+            msg = SyncMessage.decodeFrom(buf);
+        }
+        if (msg != null && id != SyncMessage.DENT && id != SyncMessage.DNT2) {
+            mListing = LIST_NONE;
+        }
+        return msg;
     }
 
     @Override
     protected void onRead(Object msg) {
         SyncMessage m = (SyncMessage) msg;
 
+        Reply<?> reply;
+        synchronized (mMessages) {
+            reply = mReplies.peek();
+            if (reply == null) {
+                if (mBudget > 0 && isBuffered(m.id())) {
+                    mBufferedBytes += m.content().readableBytes();
+                    if (mBufferedBytes >= mBudget) {
+                        holdAcks(true);
+                    }
+                }
+                mMessages.add(m);
+                return;
+            }
+        }
+
+        boolean done;
         try {
-            mMessages.put(m);
-        } catch (InterruptedException e) {
+            checkFail(m);
+            done = reply.onMessage(m);
+        } catch (IOException e) {
+            reply.fail(e);
+            done = true;
+        } finally {
+            m.release();
         }
+
+        if (done) {
+            synchronized (mMessages) {
+                mReplies.poll();
+            }
+        }
+    }
+
+    @Override
+    public void onClosed() {
+        super.onClosed();
+
+        SyncMessage m;
+        while ((m = mMessages.poll()) != null) {
+            m.release();
+        }
+        mMessages.add(CLOSED);
+
+        List<Reply<?>> replies;
+        synchronized (mMessages) {
+            replies = new ArrayList<Reply<?>>(mReplies);
+            mReplies.clear();
+        }
+        for (Reply<?> reply : replies) {
+            reply.fail(new ClosedChannelException());
+        }
+    }
+
+    private <V> Future<V> request(Reply<V> reply, SyncMessage msg) {
+        reply.promise = connection().newPromise();
+        synchronized (mMessages) {
+            mReplies.add(reply);
+        }
+        if (msg != null) {
+            failOnError(write(msg), reply);
+        }
+        return reply.promise;
+    }
+
+    // A request that could not be written gets no reply.
+    private void failOnError(Future<Void> write, final Reply<?> reply) {
+        write.addListener(new FutureListener<Void>() {
+            @Override
+            public void operationComplete(Future<Void> future) {
+                if (!future.isSuccess()) {
+                    boolean removed;
+                    synchronized (mMessages) {
+                        removed = mReplies.remove(reply);
+                    }
+                    if (removed) {
+                        reply.fail(future.cause());
+                    }
+                }
+            }
+        });
+    }
+
+    private void onConsumed(int id, int length) {
+        synchronized (mMessages) {
+            if (mBudget > 0 && isBuffered(id)) {
+                mBufferedBytes -= length;
+                if (mBufferedBytes < mBudget) {
+                    holdAcks(false);
+                }
+            }
+        }
+    }
+
+    private void endBudget() {
+        synchronized (mMessages) {
+            mBudget = 0;
+        }
+        holdAcks(false);
+    }
+
+    // Every blocking read goes through here. The close marker stays queued, so
+    // later reads fail too.
+    private SyncMessage take() throws ClosedChannelException, InterruptedException {
+        SyncMessage msg = mMessages.take();
+        if (msg == CLOSED) {
+            mMessages.add(CLOSED);
+            throw new ClosedChannelException();
+        }
+        return msg;
+    }
+
+    private static boolean isBuffered(int id) {
+        return id == SyncMessage.DATA || id == SyncMessage.DENT || id == SyncMessage.DNT2;
+    }
+
+    private Future<Void> write(SyncMessage msg) {
+        return write(msg.encode(alloc()));
     }
 
-    private void write(SyncMessage msg) {
-        write(msg.encodeToBytes());
+    private void invalidate(String path) {
+        StatCache cache = connection().statCache();
+        if (cache != null && path != null) {
+            cache.invalidate(path);
+        }
+    }
+
+    private static void readFully(FileChannel fc, long position, ByteBuf buf, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = buf.writeBytes(fc, position + read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+    }
+
+    private static void checkFail(SyncMessage msg) throws IOException {
+        if (msg.id() == SyncMessage.FAIL) {
+            throw new IOException(new String(msg.data()));
+        }
+    }
+
+    // Cuts what is written into DATA packets of up to DATA_MAX bytes, waiting
+    // for the channel to drain below its high water mark between packets.
+    private class PacketOutputStream extends OutputStream {
+        private ByteBuf mPacket;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mPacket == null) {
+                    mPacket = alloc().ioBuffer(SyncMessage.HEADER_SIZE + DATA_MAX);
+                    mPacket.writeIntLE(SyncMessage.DATA);
+                    mPacket.writeIntLE(0);
+                }
+
+                int n = Math.min(len, SyncMessage.HEADER_SIZE + DATA_MAX - mPacket.writerIndex());
+                mPacket.writeBytes(b, off, n);
+                off += n;
+                len -= n;
+
+                if (mPacket.writerIndex() == SyncMessage.HEADER_SIZE + DATA_MAX) {
+                    writePacket();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            writePacket();
+        }
+
+        private void writePacket() throws IOException {
+            if (mPacket == null) {
+                return;
+            }
+
+            ByteBuf packet = mPacket;
+            mPacket = null;
+            packet.setIntLE(4, packet.readableBytes() - SyncMessage.HEADER_SIZE);
+            SyncChannel.this.write(packet);
+
+            try {
+                awaitWritable();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    // Reads the payloads of DATA packets until DONE.
+    private class PacketInputStream extends InputStream {
+        private SyncMessage mMsg;
+        private int mLength;
+        private boolean mDone;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (mMsg == null || !mMsg.content().isReadable()) {
+                if (mDone) {
+                    return -1;
+                }
+                next();
+            }
+
+            ByteBuf data = mMsg.content();
+            int n = Math.min(len, data.readableBytes());
+            data.readBytes(b, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() {
+            releaseMessage();
+        }
+
+        // Drops the remaining DATA up to the final DONE.
+        void skipToEnd() throws IOException {
+            while (!mDone) {
+                next();
+            }
+            releaseMessage();
+        }
+
+        private void next() throws IOException {
+            releaseMessage();
+
+            SyncMessage msg;
+            try {
+                msg = take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            if (msg.id() == SyncMessage.DATA) {
+                mMsg = msg;
+                mLength = msg.content().readableBytes();
+                return;
+            }
+
+            // Nothing follows a FAIL or an unexpected reply either
+            mDone = true;
+            try {
+                checkFail(msg);
+                if (msg.id() != SyncMessage.DONE) {
+                    throw new ProtocolException();
+                }
+            } finally {
+                msg.release();
+            }
+        }
+
+        private void releaseMessage() {
+            if (mMsg != null) {
+                mMsg.release();
+                onConsumed(SyncMessage.DATA, mLength);
+                mMsg = null;
+            }
+        }
+    }
+
+    private abstract static class Reply<V> {
+        Promise<V> promise;
+
+        // Returns true once the reply is complete. The message is released
+        // afterwards.
+        abstract boolean onMessage(SyncMessage msg) throws IOException;
+
+        void fail(Throwable cause) {
+            promise.tryFailure(cause);
+        }
+    }
+
+    private class OkayReply extends Reply<Void> {
+        private String mPath;
+
+        OkayReply(String path) {
+            mPath = path;
+        }
+
+        @Override
+        boolean onMessage(SyncMessage msg) throws IOException {
+            invalidate(mPath);
+            if (msg.id() != SyncMessage.OKAY) {
+                throw new ProtocolException();
+            }
+            promise.setSuccess(null);
+            return true;
+        }
+    }
+
+    // Reads and writes one packet per step on the io executor. Once PUSH_WINDOW
+    // packets are unacknowledged, the next step waits for the oldest of them.
+    private class FilePush implements Runnable, FutureListener<Void> {
+        private FileInputStream mIn;
+        private FileChannel mChannel;
+        private int mTimestamp;
+        private OkayReply mReply;
+        private Executor mIo;
+        private ArrayDeque<Future<Void>> mWrites = new ArrayDeque<>();
+        private boolean mDone;
+
+        FilePush(FileInputStream in, int timestamp, OkayReply reply, Executor io) {
+            mIn = in;
+            mChannel = in.getChannel();
+            mTimestamp = timestamp;
+            mReply = reply;
+            mIo = io;
+        }
+
+        @Override
+        public void operationComplete(Future<Void> future) {
+            try {
+                mIo.execute(this);
+            } catch (RuntimeException e) {
+                finish(e);
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            if (mDone) {
+                return;
+            }
+
+            try {
+                while (true) {
+                    Future<Void> head;
+                    while ((head = mWrites.peek()) != null && head.isDone()) {
+                        mWrites.poll();
+                        if (!head.isSuccess()) {
+                            throw head.cause();
+                        }
+                    }
+                    if (mWrites.size() >= PUSH_WINDOW) {
+                        head.addListener(this);
+                        return;
+                    }
+
+                    ByteBuf buf = alloc().ioBuffer(SyncMessage.HEADER_SIZE + DATA_MAX);
+                    int n;
+                    try {
+                        buf.writeIntLE(SyncMessage.DATA);
+                        buf.writeIntLE(0);
+                        n = Util.read(mChannel, buf, DATA_MAX);
+                    } catch (IOException e) {
+                        buf.release();
+                        throw e;
+                    }
+                    if (n < 0) {
+                        buf.release();
+                        failOnError(writeDone(mTimestamp), mReply);
+                        finish(null);
+                        return;
+                    }
+
+                    buf.setIntLE(4, n);
+                    mWrites.add(write(buf));
+                }
+            } catch (Throwable e) {
+                finish(e);
+            }
+        }
+
+        private synchronized void finish(Throwable cause) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+
+            try {
+                mIn.close();
+            } catch (IOException e) {
+                // Nothing to lose, the file was only read
+            }
+            if (cause != null) {
+                boolean removed;
+                synchronized (mMessages) {
+                    removed = mReplies.remove(mReply);
+                }
+                if (removed) {
+                    mReply.fail(cause);
+                }
+            }
+        }
+    }
+
+    // DATA is written on the io executor at the position it was received for,
+    // so writes may run in any order. The reply completes once DONE has arrived
+    // and every write has finished.
+    private class FileReply extends Reply<Long> {
+        private FileChannel mOut;
+        private Executor mIo;
+        private int mBudget;
+
+        // Guarded by this
+        private long mPosition;
+        private int mBuffered;
+        private int mWriting;
+        private boolean mEnded;
+        private Throwable mError;
+
+        FileReply(FileChannel out, Executor io, int budget) {
+            mOut = out;
+            mIo = io;
+            mBudget = budget;
+        }
+
+        @Override
+        boolean onMessage(SyncMessage msg) throws IOException {
+            switch (msg.id()) {
+                case SyncMessage.DATA:
+                    write(msg.content().retain());
+                    return false;
+
+                case SyncMessage.DONE:
+                    synchronized (this) {
+                        mEnded = true;
+                    }
+                    complete();
+                    return true;
+
+                default:
+                    throw new ProtocolException();
+            }
+        }
+
+        private void write(final ByteBuf data) {
+            final long position;
+            boolean hold;
+            synchronized (this) {
+                position = mPosition;
+                mPosition += data.readableBytes();
+                mBuffered += data.readableBytes();
+                mWriting++;
+                hold = mBuffered >= mBudget;
+            }
+            if (hold) {
+                holdAcks(true);
+            }
+
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    int length = data.readableBytes();
+                    try {
+                        long p = position;
+                        while (data.isReadable()) {
+                            p += data.readBytes(mOut, p, data.readableBytes());
+                        }
+                    } catch (Throwable e) {
+                        synchronized (FileReply.this) {
+                            mError = e;
+                        }
+                    } finally {
+                        data.release();
+                    }
+                    written(length);
+                }
+            };
+            try {
+                mIo.execute(task);
+            } catch (RuntimeException e) {
+                int length = data.readableBytes();
+                data.release();
+                synchronized (this) {
+                    mError = e;
+                }
+                written(length);
+            }
+        }
+
+        private void written(int length) {
+            boolean release;
+            synchronized (this) {
+                boolean held = mBuffered >= mBudget;
+                mBuffered -= length;
+                mWriting--;
+                release = held && mBuffered < mBudget;
+            }
+            if (release) {
+                holdAcks(false);
+            }
+            complete();
+        }
+
+        private void complete() {
+            Throwable error;
+            long position;
+            synchronized (this) {
+                if (mWriting > 0 || (!mEnded && mError == null)) {
+                    return;
+                }
+                error = mError;
+                position = mPosition;
+            }
+
+            if (error != null) {
+                fail(error);
+            } else {
+                promise.trySuccess(position);
+            }
+        }
+
+        @Override
+        void fail(Throwable cause) {
+            holdAcks(false);
+            super.fail(cause);
+        }
     }
 }
@@ -1,9 +1,12 @@
 package org.arpnetwork.adb;
 
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 
 public class SyncMessage {
@@ -14,14 +17,30 @@ public class SyncMessage {
     public static final int OKAY = 0x59414B4F;
     public static final int QUIT = 0x54495551;
     public static final int STA2 = 0x32415453;
+    public static final int FAIL = 0x4C494146;
+    public static final int LIST = 0x5453494C;
+    public static final int LIS2 = 0x3253494C;
+    public static final int DENT = 0x544E4544;
+    public static final int DNT2 = 0x32544E44;
+    public static final int SND2 = 0x32444E53;
+    public static final int RCV2 = 0x32564352;
+
+    // Compression flags of SND2 and RCV2
+    public static final int FLAG_NONE = 0;
+    public static final int FLAG_BROTLI = 1;
+    public static final int FLAG_LZ4 = 2;
+    public static final int FLAG_ZSTD = 4;
 
     private static final int STA2_SIZE = 68;
+    // Entry headers following the id, up to and including the name length
+    private static final int DENT_SIZE = 16;
+    private static final int DNT2_SIZE = STA2_SIZE + 4;
+
+    public static final int HEADER_SIZE = 8;
 
     private int mId;
     private int mTimestamp;
-    private byte[] mData;
-    private int mOffset;
-    private int mLength;
+    private ByteBuf mData;
 
     public SyncMessage(int id, String data) {
         this(id, data.getBytes());
@@ -32,10 +51,12 @@ public class SyncMessage {
     }
 
     public SyncMessage(int id, byte[] data, int offset, int length) {
+        this(id, Unpooled.wrappedBuffer(data, offset, length));
+    }
+
+    public SyncMessage(int id, ByteBuf data) {
         mId = id;
         mData = data;
-        mOffset = offset;
-        mLength = length;
     }
 
     public SyncMessage(byte[] data) {
@@ -46,11 +67,16 @@ public class SyncMessage {
         this(DATA, data, offset, length);
     }
 
+    public SyncMessage(ByteBuf data) {
+        this(DATA, data);
+    }
+
     public SyncMessage(int timestamp) {
-        this(DONE, new byte[0]);
+        this(DONE, Unpooled.EMPTY_BUFFER);
         mTimestamp = timestamp;
     }
 
+    // The payload is a retained slice of buf, release the message once done.
     public static SyncMessage decodeFrom(ByteBuf buf) {
         SyncMessage msg = null;
 
@@ -64,7 +90,7 @@ public class SyncMessage {
                 length = buf.readIntLE();
             }
             if (buf.readableBytes() >= length) {
-                msg = new SyncMessage(id, buf.readBytes(length).array());
+                msg = new SyncMessage(id, buf.readRetainedSlice(length));
             }
         }
 
@@ -75,14 +101,40 @@ public class SyncMessage {
         return msg;
     }
 
-    public byte[] encodeToBytes() {
-        ByteBuf buf = Unpooled.buffer(8 + mLength);
-        buf.writeIntLE(mId);
-        buf.writeIntLE(mId == DONE ? mTimestamp : mLength);
-        if (mLength > 0) {
-            buf.writeBytes(mData, mOffset, mLength);
+    // Decodes a LIST (v1) or LIS2 (v2) reply. The payload holds the entry header
+    // and the name; the final DONE carries an empty header of the same size.
+    public static SyncMessage decodeDentFrom(ByteBuf buf, boolean v2) throws ProtocolException {
+        int size = v2 ? DNT2_SIZE : DENT_SIZE;
+        if (buf.readableBytes() < 4 + size) {
+            return null;
+        }
+
+        int start = buf.readerIndex();
+        int nameLength = buf.getIntLE(start + size);
+        if (nameLength < 0 || nameLength > Message.MAXDATA) {
+            throw new ProtocolException();
         }
-        return buf.array();
+        if (buf.readableBytes() < 4 + size + nameLength) {
+            return null;
+        }
+
+        int id = buf.readIntLE();
+        return new SyncMessage(id, buf.readRetainedSlice(size + nameLength));
+    }
+
+    // The payload is not copied, it becomes a component of the returned buffer.
+    public ByteBuf encode(ByteBufAllocator alloc) {
+        int length = mData.readableBytes();
+
+        ByteBuf header = alloc.buffer(HEADER_SIZE);
+        header.writeIntLE(mId);
+        header.writeIntLE(mId == DONE ? mTimestamp : length);
+        if (length == 0) {
+            mData.release();
+            return header;
+        }
+
+        return alloc.compositeBuffer(2).addComponents(true, header, mData);
     }
 
     public int id() {
@@ -90,13 +142,21 @@ public class SyncMessage {
     }
 
     public byte[] data() {
+        return ByteBufUtil.getBytes(mData, mData.readerIndex(), mData.readableBytes(), false);
+    }
+
+    public ByteBuf content() {
         return mData;
     }
 
+    public void release() {
+        mData.release();
+    }
+
     @Override
     public String toString() {
         String id = new String(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(mId).array());
 
-        return String.format("[%s, %d]", id, mData.length);
+        return String.format("[%s, %d]", id, mData.readableBytes());
     }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+public class TransferResult {
+    public long bytes;
+    public int files;
+    public long millis;
+    // Files left out because they were unchanged
+    public int skipped;
+
+    public TransferResult(long bytes, int files, long millis) {
+        this.bytes = bytes;
+        this.files = files;
+        this.millis = millis;
+    }
+
+    public long bytesPerSecond() {
+        return millis > 0 ? bytes * 1000 / millis : bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%d files, %d bytes in %d ms, %d skipped]", files, bytes, millis, skipped);
+    }
+}
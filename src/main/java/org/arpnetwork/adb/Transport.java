@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.arpnetwork.adb;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+// Event loop, channel type and allocator shared by any number of Connections.
+// One event loop thread serves many devices, so a single Transport with about
+// one thread per core is enough for a whole host.
+public class Transport {
+    private EventLoopGroup mGroup;
+    private Class<? extends SocketChannel> mChannelClass;
+    private ByteBufAllocator mAlloc;
+    private int mFlushBytes;
+    private int mFlushDelay;
+
+    public Transport() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public Transport(int threads) {
+        this(threads, true, PooledByteBufAllocator.DEFAULT);
+    }
+
+    public Transport(int threads, boolean preferNative, ByteBufAllocator alloc) {
+        if (preferNative && isEpollAvailable()) {
+            mGroup = new EpollEventLoopGroup(threads);
+            mChannelClass = EpollSocketChannel.class;
+        } else {
+            mGroup = new NioEventLoopGroup(threads);
+            mChannelClass = NioSocketChannel.class;
+        }
+        mAlloc = alloc;
+    }
+
+    public EventLoopGroup group() {
+        return mGroup;
+    }
+
+    public Class<? extends SocketChannel> channelClass() {
+        return mChannelClass;
+    }
+
+    public ByteBufAllocator alloc() {
+        return mAlloc;
+    }
+
+    // Frames written to a connection are flushed together once per read cycle,
+    // when maxBytes are pending, or after maxDelay milliseconds. Only applies
+    // to Connections which are connected afterwards.
+    public void setFlushBatching(int maxBytes, int maxDelay) {
+        mFlushBytes = maxBytes;
+        mFlushDelay = maxDelay;
+    }
+
+    public boolean isFlushBatching() {
+        return mFlushBytes > 0;
+    }
+
+    public int flushBytes() {
+        return mFlushBytes;
+    }
+
+    public int flushDelay() {
+        return mFlushDelay;
+    }
+
+    public boolean isNative() {
+        return mChannelClass == EpollSocketChannel.class;
+    }
+
+    public void shutdown() {
+        mGroup.shutdownGracefully();
+    }
+
+    private static boolean isEpollAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (Throwable e) {
+            // The native transport is missing on this platform (e.g. Android).
+            return false;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Copies directory trees over several sync channels of one Connection. Small
+// files are bound by the SEND/DONE/OKAY round trip, so running the channels in
+// parallel scales almost linearly. Each worker owns a channel and a queue of
+// files, and steals from the other queues once its own is empty.
+public class TreeTransfer {
+    public static final int DEFAULT_CHANNELS = 4;
+
+    // Longest sha256sum command line sent to the device at once
+    private static final int HASH_COMMAND_MAX = 32 * 1024;
+    private static final ShellLimits HASH_LIMITS = new ShellLimits(1024 * 1024, 0, 5, TimeUnit.MINUTES);
+
+    private Connection mConn;
+    private int mChannels;
+    private boolean mIncremental;
+    private boolean mCompression;
+
+    public TreeTransfer(Connection conn) {
+        this(conn, DEFAULT_CHANNELS);
+    }
+
+    public TreeTransfer(Connection conn, int channels) {
+        if (channels < 1) {
+            throw new IllegalArgumentException();
+        }
+
+        mConn = conn;
+        mChannels = channels;
+    }
+
+    // Only push files whose remote copy differs. Files with the same size and
+    // mtime are skipped. If only the mtime differs, the contents are compared
+    // with the device's sha256sum, when available. Pushed files get the local
+    // mtime, so they match on the next run.
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
+    // See SyncChannel.setCompression.
+    public void setCompression(boolean compression) {
+        mCompression = compression;
+    }
+
+    public TransferResult push(File localDir, String remoteDir) throws IOException, InterruptedException {
+        List<Task> tasks = new ArrayList<>();
+        collectLocal(localDir, remoteDir, tasks);
+
+        int skipped = 0;
+        if (mIncremental) {
+            int count = tasks.size();
+            tasks = changed(tasks);
+            skipped = count - tasks.size();
+        }
+
+        TransferResult result = run(tasks, true);
+        result.skipped = skipped;
+        return result;
+    }
+
+    public TransferResult pull(String remoteDir, File localDir) throws IOException, InterruptedException {
+        List<Task> tasks = new ArrayList<>();
+        SyncChannel ch = mConn.openSync();
+        try {
+            collectRemote(ch, remoteDir, localDir, tasks);
+        } finally {
+            ch.close();
+        }
+        return run(tasks, false);
+    }
+
+    private TransferResult run(List<Task> tasks, boolean push) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+
+        // Largest files first, dealt round robin, so queues start out balanced.
+        Collections.sort(tasks, new Comparator<Task>() {
+            @Override
+            public int compare(Task a, Task b) {
+                return Long.compare(b.size, a.size);
+            }
+        });
+
+        int count = Math.max(1, Math.min(mChannels, tasks.size()));
+        List<ConcurrentLinkedDeque<Task>> queues = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            queues.add(new ConcurrentLinkedDeque<Task>());
+        }
+        for (int i = 0; i < tasks.size(); ++i) {
+            queues.get(i % count).add(tasks.get(i));
+        }
+
+        Progress progress = new Progress();
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; ++i) {
+            threads[i] = new Thread(new Worker(i, queues, push, progress), "adb-sync-" + i);
+            threads[i].start();
+        }
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            progress.fail(e);
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+            throw e;
+        }
+
+        if (progress.error != null) {
+            if (progress.error instanceof IOException) {
+                throw (IOException) progress.error;
+            }
+            throw new IOException(progress.error);
+        }
+
+        return new TransferResult(progress.bytes.get(), progress.files.get(),
+                System.currentTimeMillis() - start);
+    }
+
+    private void collectLocal(File dir, String remoteDir, List<Task> tasks) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Failed to list " + dir);
+        }
+
+        for (File f : files) {
+            String remote = remoteDir + "/" + f.getName();
+            if (f.isDirectory()) {
+                collectLocal(f, remote, tasks);
+            } else if (f.isFile()) {
+                tasks.add(new Task(f, remote, f.length()));
+            }
+        }
+    }
+
+    private List<Task> changed(List<Task> tasks) throws IOException, InterruptedException {
+        List<String> paths = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            paths.add(task.remote);
+        }
+
+        List<Stat> stats;
+        SyncChannel ch = mConn.openSync();
+        try {
+            stats = ch.statAll(paths);
+        } finally {
+            ch.close();
+        }
+
+        List<Task> changed = new ArrayList<>();
+        List<Task> suspects = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); ++i) {
+            Task task = tasks.get(i);
+            Stat st = stats.get(i);
+            if (st.error != 0 || !st.isFile() || st.size != task.size) {
+                changed.add(task);
+            } else if (st.mtime != task.local.lastModified() / 1000) {
+                suspects.add(task);
+            }
+        }
+
+        if (!suspects.isEmpty()) {
+            Map<String, String> hashes = remoteHashes(suspects);
+            for (Task task : suspects) {
+                String hash = hashes.get(task.remote);
+                if (hash == null || !hash.equals(localHash(task.local))) {
+                    changed.add(task);
+                }
+            }
+        }
+        return changed;
+    }
+
+    // Paths missing from the result could not be hashed, e.g. because the
+    // device has no sha256sum.
+    private Map<String, String> remoteHashes(List<Task> tasks) throws IOException, InterruptedException {
+        Map<String, String> hashes = new HashMap<>();
+
+        StringBuilder cmd = new StringBuilder();
+        for (int i = 0; i < tasks.size(); ++i) {
+            cmd.append(cmd.length() == 0 ? "sha256sum" : "").append(' ').append(Util.shellQuote(tasks.get(i).remote));
+            if (cmd.length() < HASH_COMMAND_MAX && i < tasks.size() - 1) {
+                continue;
+            }
+
+            // <hash>  <path>
+            for (String line : runShell(cmd.toString()).split("\n")) {
+                int sep = line.indexOf("  ");
+                if (sep == 64) {
+                    hashes.put(line.substring(sep + 2), line.substring(0, sep));
+                }
+            }
+            cmd.setLength(0);
+        }
+        return hashes;
+    }
+
+    private String runShell(String cmd) throws IOException, InterruptedException {
+        try {
+            return mConn.execute(cmd, HASH_LIMITS).get().stdout;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static String localHash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        byte[] buf = new byte[SyncChannel.DATA_MAX];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                digest.update(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private void collectRemote(SyncChannel ch, final String remoteDir, final File localDir, final List<Task> tasks)
+            throws IOException, InterruptedException {
+        final List<String> dirs = new ArrayList<>();
+        ch.list(remoteDir);
+        ch.syncList(new SyncChannel.ListListener() {
+            @Override
+            public void onEntry(SyncChannel ch, DirEntry entry) {
+                if (entry.name.equals(".") || entry.name.equals("..")) {
+                    return;
+                }
+
+                if (entry.isDirectory()) {
+                    dirs.add(entry.name);
+                } else if (entry.isFile()) {
+                    tasks.add(new Task(new File(localDir, entry.name), remoteDir + "/" + entry.name, entry.size));
+                }
+            }
+        });
+
+        for (String name : dirs) {
+            collectRemote(ch, remoteDir + "/" + name, new File(localDir, name), tasks);
+        }
+    }
+
+    private static class Task {
+        File local;
+        String remote;
+        long size;
+
+        Task(File local, String remote, long size) {
+            this.local = local;
+            this.remote = remote;
+            this.size = size;
+        }
+    }
+
+    private static class Progress {
+        AtomicLong bytes = new AtomicLong();
+        AtomicInteger files = new AtomicInteger();
+        volatile Throwable error;
+
+        synchronized void fail(Throwable e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        private int mIndex;
+        private List<ConcurrentLinkedDeque<Task>> mQueues;
+        private boolean mPush;
+        private Progress mProgress;
+
+        Worker(int index, List<ConcurrentLinkedDeque<Task>> queues, boolean push, Progress progress) {
+            mIndex = index;
+            mQueues = queues;
+            mPush = push;
+            mProgress = progress;
+        }
+
+        @Override
+        public void run() {
+            SyncChannel ch = null;
+            try {
+                ch = mConn.openSync();
+                ch.setCompression(mCompression);
+
+                Task task;
+                while (mProgress.error == null && (task = next()) != null) {
+                    TransferResult r;
+                    if (mPush) {
+                        int mode = task.local.canExecute() ? SyncChannel.MODE_EXECUTABLE : SyncChannel.MODE_NORMAL;
+                        r = ch.push(task.local, task.remote, mode, null);
+                    } else {
+                        File parent = task.local.getParentFile();
+                        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                            throw new IOException("Failed to create " + parent);
+                        }
+                        r = ch.pull(task.remote, task.local);
+                    }
+                    mProgress.bytes.addAndGet(r.bytes);
+                    mProgress.files.incrementAndGet();
+                }
+            } catch (Exception e) {
+                mProgress.fail(e);
+            } finally {
+                if (ch != null) {
+                    ch.close();
+                }
+            }
+        }
+
+        // Own queue from the front, other queues from the back.
+        private Task next() {
+            Task task = mQueues.get(mIndex).pollFirst();
+            for (int i = 1; task == null && i < mQueues.size(); ++i) {
+                task = mQueues.get((mIndex + i) % mQueues.size()).pollLast();
+            }
+            return task;
+        }
+    }
+}
@@ -1,10 +1,57 @@
 package org.arpnetwork.adb;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+import io.netty.buffer.ByteBuf;
 
 public class Util {
+    private static final long LOW_BYTES = 0x00FF00FF00FF00FFL;
+    private static final long SUM_LANES = 0x0001000100010001L;
+
     public static String commandToString(int cmd) {
         return new String(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(cmd).array());
     }
+
+    // Quotes s as a single word for the device's shell.
+    public static String shellQuote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    // Sum of the unsigned bytes, as used by the ADB data checksum. Eight bytes
+    // are added at a time: the bytes are folded into four 16-bit lanes, and the
+    // multiplication accumulates all lanes into the top one.
+    public static int checksum(ByteBuf buf, int index, int length) {
+        long sum = 0;
+        int end = index + length;
+        int i = index;
+        for (; i + 8 <= end; i += 8) {
+            long v = buf.getLong(i);
+            v = (v & LOW_BYTES) + ((v >>> 8) & LOW_BYTES);
+            sum += (v * SUM_LANES) >>> 48;
+        }
+        for (; i < end; ++i) {
+            sum += buf.getUnsignedByte(i);
+        }
+        return (int) sum;
+    }
+
+    // Reads up to length bytes from src into buf, returning as soon as some
+    // have arrived so interactive input is not held back. Returns -1 at the
+    // end of the stream.
+    public static int read(ReadableByteChannel src, ByteBuf buf, int length) throws IOException {
+        buf.ensureWritable(length);
+        ByteBuffer dst = buf.nioBuffer(buf.writerIndex(), length);
+        int n;
+        do {
+            n = src.read(dst);
+        } while (n == 0 && dst.hasRemaining());
+
+        if (n > 0) {
+            buf.writerIndex(buf.writerIndex() + n);
+        }
+        return n;
+    }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ByteProcessor;
+
+// Splits a raw H.264 elementary stream, such as the output of
+// "screenrecord --output-format=h264 -", into NAL units. Units are slices of the
+// channel's pooled receive buffer, scanned for start codes only once. Up to
+// capacity units are queued for the consumer. When it falls behind, the oldest
+// units are dropped up to the next SPS or IDR, so the decoder never sees a
+// broken reference chain.
+public class VideoChannel extends Channel {
+    public static final int DEFAULT_CAPACITY = 64;
+
+    // Guarded by mUnits
+    private ArrayDeque<NalUnit> mUnits;
+    private int mCapacity;
+    private long mDropped;
+    private boolean mSkipping;
+    private boolean mClosed;
+
+    // Bytes of the current unit already known not to start the next one, and
+    // when the unit started.
+    private int mScanned;
+    private long mStartTime;
+
+    public VideoChannel(Connection conn, int id) {
+        super(conn, id);
+
+        mUnits = new ArrayDeque<>();
+        mCapacity = DEFAULT_CAPACITY;
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        synchronized (mUnits) {
+            mCapacity = capacity;
+        }
+    }
+
+    // Number of units dropped because the consumer fell behind.
+    public long dropped() {
+        synchronized (mUnits) {
+            return mDropped;
+        }
+    }
+
+    // Blocks until a unit is available, or returns null once the channel is
+    // closed. Must not be called from the connection's event loop.
+    public NalUnit take() throws InterruptedException {
+        synchronized (mUnits) {
+            while (mUnits.isEmpty() && !mClosed) {
+                mUnits.wait();
+            }
+            return mUnits.poll();
+        }
+    }
+
+    public NalUnit poll() {
+        synchronized (mUnits) {
+            return mUnits.poll();
+        }
+    }
+
+    // A unit is complete once the next start code is seen. What is left when
+    // an inbound packet runs out is emitted too, since screenrecord writes an
+    // encoder buffer at once and waiting for the next one would cost a frame,
+    // or forever on a static screen. If the unit turns out to go on, the rest
+    // follows as a continuation.
+    @Override
+    protected Object decode(ByteBuf buf) {
+        int start = buf.readerIndex();
+        int end = buf.writerIndex();
+        if (start == end) {
+            return null;
+        }
+        if (mStartTime == 0) {
+            mStartTime = System.nanoTime();
+        }
+
+        int index = start + mScanned;
+        if (mScanned == 0) {
+            int code = NalUnit.startCodeLength(buf, start, end);
+            if (code < 0) {
+                return null;
+            }
+            // The unit's own start code is never the next one
+            index = start + code;
+        }
+
+        while (index < end) {
+            int zero = buf.forEachByte(index, end - index, ByteProcessor.FIND_NUL);
+            if (zero < 0 || zero + 2 >= end) {
+                index = zero < 0 ? end : zero;
+                break;
+            }
+
+            if (buf.getByte(zero + 1) == 0 && buf.getByte(zero + 2) == 1) {
+                int next = zero > start && buf.getByte(zero - 1) == 0 ? zero - 1 : zero;
+                if (next > start) {
+                    return emit(buf, next - start);
+                }
+            }
+            index = zero + 1;
+        }
+        mScanned = index - start;
+
+        // Zeros at the end may belong to the next start code
+        int last = end - 1;
+        while (last >= start && buf.getByte(last) == 0) {
+            --last;
+        }
+        int length = last + 1 - start;
+        if (length <= 0 || length <= NalUnit.startCodeLength(buf, start, end)) {
+            return null;
+        }
+        return emit(buf, length);
+    }
+
+    private NalUnit emit(ByteBuf buf, int length) {
+        NalUnit unit = new NalUnit(buf.readRetainedSlice(length), mStartTime);
+        mScanned = 0;
+        mStartTime = 0;
+        return unit;
+    }
+
+    // On overflow whole groups are dropped: up to the next SPS, or the next IDR
+    // if no SPS is queued, so what remains decodes.
+    @Override
+    protected void onRead(Object msg) {
+        NalUnit unit = (NalUnit) msg;
+
+        List<NalUnit> dropped = new ArrayList<>();
+        synchronized (mUnits) {
+            if (mUnits.size() >= mCapacity) {
+                int type = nextGroupType();
+                do {
+                    dropped.add(mUnits.poll());
+                } while (!mUnits.isEmpty() && (type == 0 || mUnits.peek().type() != type));
+                mSkipping = mUnits.isEmpty();
+            }
+
+            if (mSkipping && !unit.isGroupStart()) {
+                dropped.add(unit);
+            } else {
+                mSkipping = false;
+                mUnits.add(unit);
+                mUnits.notifyAll();
+            }
+            mDropped += dropped.size();
+        }
+
+        for (NalUnit u : dropped) {
+            u.release();
+        }
+    }
+
+    // Type of the unit which starts the next group after the head, 0 if none
+    // is queued.
+    private int nextGroupType() {
+        boolean idr = false;
+        boolean head = true;
+        for (NalUnit u : mUnits) {
+            if (head) {
+                head = false;
+                continue;
+            }
+            int type = u.type();
+            if (type == NalUnit.TYPE_SPS) {
+                return type;
+            }
+            idr |= type == NalUnit.TYPE_IDR;
+        }
+        return idr ? NalUnit.TYPE_IDR : 0;
+    }
+
+    // Units not taken yet are released.
+    @Override
+    public void onClosed() {
+        List<NalUnit> units;
+        synchronized (mUnits) {
+            mClosed = true;
+            units = new ArrayList<>(mUnits);
+            mUnits.clear();
+            mUnits.notifyAll();
+        }
+        for (NalUnit u : units) {
+            u.release();
+        }
+
+        super.onClosed();
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ChannelTest {
+    private static final int REMOTE_ID = 100;
+
+    private FakeConnection mConn;
+    private TestChannel mChannel;
+
+    // Every inbound byte is a message of its own
+    private static class TestChannel extends Channel {
+        StringBuilder read = new StringBuilder();
+
+        TestChannel(Connection conn) {
+            super(conn, 1);
+        }
+
+        Future<Void> write(String data) {
+            return write(data.getBytes());
+        }
+
+        @Override
+        protected Object decode(ByteBuf buf) {
+            return buf.isReadable() ? (char) buf.readByte() : null;
+        }
+
+        @Override
+        protected void onRead(Object msg) {
+            read.append(msg);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mConn = new FakeConnection();
+        mChannel = new TestChannel(mConn);
+    }
+
+    private static ByteBuf data(String s) {
+        return Unpooled.copiedBuffer(s, CharsetUtil.ISO_8859_1);
+    }
+
+    private List<String> frames(String... frames) {
+        return Arrays.asList(frames);
+    }
+
+    @Test
+    public void stopAndWait_mergesQueuedWritesIntoOneFrame() {
+        Future<Void> a = mChannel.write("a");
+        Future<Void> b = mChannel.write("b");
+        assertEquals(Collections.emptyList(), mConn.frames());
+
+        mChannel.onOpened(REMOTE_ID, false, 0);
+        assertEquals(frames("WRTE ab"), mConn.frames());
+
+        // One frame in flight until its OKAY
+        Future<Void> c = mChannel.write("c");
+        Future<Void> d = mChannel.write("d");
+        assertEquals(Collections.emptyList(), mConn.frames());
+        assertFalse(a.isDone());
+
+        mChannel.onAck(false, 0);
+        assertTrue(a.isSuccess());
+        assertTrue(b.isSuccess());
+        assertEquals(frames("WRTE cd"), mConn.frames());
+        assertFalse(c.isDone());
+
+        mChannel.onAck(false, 0);
+        assertTrue(c.isSuccess());
+        assertTrue(d.isSuccess());
+        assertEquals(Collections.emptyList(), mConn.frames());
+    }
+
+    @Test
+    public void stopAndWait_splitsAtMaxPayload() {
+        mConn.maxPayload = 4;
+        mChannel.onOpened(REMOTE_ID, false, 0);
+
+        Future<Void> f = mChannel.write("0123456789");
+        assertEquals(frames("WRTE 0123"), mConn.frames());
+        mChannel.onAck(false, 0);
+        assertEquals(frames("WRTE 4567"), mConn.frames());
+        mChannel.onAck(false, 0);
+        assertEquals(frames("WRTE 89"), mConn.frames());
+        assertFalse(f.isDone());
+        mChannel.onAck(false, 0);
+        assertTrue(f.isSuccess());
+    }
+
+    @Test
+    public void windowed_releasesAsWindowOpens() {
+        mConn.maxPayload = 8;
+        mChannel.onOpened(REMOTE_ID, true, 12);
+
+        Future<Void> f = mChannel.write("0123456789abcdefghij");
+        // Frames up to maxPayload while the window has room
+        assertEquals(frames("WRTE 01234567", "WRTE 89ab"), mConn.frames());
+
+        mChannel.onAck(true, 6);
+        assertEquals(frames("WRTE cdefgh"), mConn.frames());
+        mChannel.onAck(true, 2);
+        assertEquals(frames("WRTE ij"), mConn.frames());
+        assertFalse(f.isDone());
+
+        // Acks cover whole frames before the write completes
+        mChannel.onAck(true, 11);
+        assertFalse(f.isDone());
+        mChannel.onAck(true, 1);
+        assertTrue(f.isSuccess());
+    }
+
+    @Test
+    public void windowed_completesWritesByLastByte() {
+        mChannel.onOpened(REMOTE_ID, true, 4);
+
+        Future<Void> a = mChannel.write("ab");
+        Future<Void> b = mChannel.write("cdef");
+        assertEquals(frames("WRTE ab", "WRTE cd"), mConn.frames());
+
+        mChannel.onAck(true, 3);
+        assertTrue(a.isSuccess());
+        assertFalse(b.isDone());
+        assertEquals(frames("WRTE ef"), mConn.frames());
+        mChannel.onAck(true, 3);
+        assertTrue(b.isSuccess());
+    }
+
+    @Test
+    public void windowed_negativeUpdateShrinksWindow() {
+        mChannel.onOpened(REMOTE_ID, true, 4);
+
+        Future<Void> a = mChannel.write("ab");
+        Future<Void> b = mChannel.write("cdef");
+        assertEquals(frames("WRTE ab", "WRTE cd"), mConn.frames());
+
+        // Takes back room without acknowledging a frame
+        mChannel.onAck(true, -2);
+        assertFalse(a.isDone());
+        mChannel.onAck(true, 2);
+        assertFalse(a.isDone());
+        assertEquals(Collections.emptyList(), mConn.frames());
+
+        mChannel.onAck(true, 4);
+        assertTrue(a.isSuccess());
+        assertEquals(frames("WRTE ef"), mConn.frames());
+        mChannel.onAck(true, 2);
+        assertTrue(b.isSuccess());
+    }
+
+    @Test
+    public void windowed_keepsWireOrderAcrossThreads() throws Exception {
+        DefaultEventExecutor loop = new DefaultEventExecutor();
+        try {
+            mConn.executor = loop;
+            mConn.maxPayload = 4;
+            // The device acks each WRTE as it arrives, on the event loop
+            mConn.writeListener = new FakeConnection.WriteListener() {
+                @Override
+                public void onWrite(int bytes) {
+                    mChannel.onAck(true, bytes);
+                }
+            };
+            loop.submit(new Runnable() {
+                @Override
+                public void run() {
+                    mChannel.onOpened(REMOTE_ID, true, 8);
+                }
+            }).sync();
+
+            StringBuilder expected = new StringBuilder();
+            Future<Void> last = null;
+            for (int i = 0; i < 2000; ++i) {
+                String s = Integer.toString(i, 36) + ",";
+                expected.append(s);
+                last = mChannel.write(s);
+            }
+            assertTrue(last.await(10, TimeUnit.SECONDS));
+            assertTrue(last.isSuccess());
+
+            StringBuilder sent = new StringBuilder();
+            for (String frame : mConn.frames()) {
+                sent.append(frame.substring("WRTE ".length()));
+            }
+            assertEquals(expected.toString(), sent.toString());
+        } finally {
+            loop.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void writability() {
+        final List<Boolean> events = new ArrayList<>();
+        mChannel.setWritabilityListener(new Channel.WritabilityListener() {
+            @Override
+            public void onWritabilityChanged(Channel ch, boolean writable) {
+                events.add(writable);
+            }
+        });
+        mChannel.setWriteBufferWaterMark(4, 8);
+        mChannel.onOpened(REMOTE_ID, false, 0);
+
+        mChannel.write("01234");
+        mChannel.write("5678");
+        // In flight bytes count until they are acknowledged
+        assertFalse(mChannel.isWritable());
+        assertEquals(Arrays.asList(false), events);
+
+        mChannel.onAck(false, 0);
+        assertFalse(mChannel.isWritable());
+        mChannel.onAck(false, 0);
+        assertTrue(mChannel.isWritable());
+        assertEquals(Arrays.asList(false, true), events);
+    }
+
+    @Test
+    public void close_waitsForQueuedWrites() {
+        mChannel.onOpened(REMOTE_ID, false, 0);
+        mChannel.write("a");
+        mChannel.write("b");
+        mChannel.close();
+        assertTrue(mChannel.write("c").cause() instanceof ClosedChannelException);
+        assertEquals(frames("WRTE a"), mConn.frames());
+
+        mChannel.onAck(false, 0);
+        assertEquals(frames("WRTE b"), mConn.frames());
+        mChannel.onAck(false, 0);
+        assertEquals(frames("CLSE"), mConn.frames());
+    }
+
+    @Test
+    public void closed_failsPendingWrites() {
+        mChannel.onOpened(REMOTE_ID, false, 0);
+        Future<Void> a = mChannel.write("a");
+        Future<Void> b = mChannel.write("b");
+        mChannel.onClosed();
+        assertTrue(a.cause() instanceof ClosedChannelException);
+        assertTrue(b.cause() instanceof ClosedChannelException);
+        assertTrue(mChannel.isWritable());
+    }
+
+    @Test
+    public void writeFailure_failsFrame() {
+        mConn.maxPayload = 4;
+        mChannel.onOpened(REMOTE_ID, false, 0);
+        Future<Void> a = mChannel.write("ab");
+        Future<Void> b = mChannel.write("cd");
+        Future<Void> c = mChannel.write("efghij");
+        assertEquals(frames("WRTE ab"), mConn.frames());
+
+        // The next frame carries b and the start of c
+        IllegalStateException failure = new IllegalStateException();
+        mConn.writeFailure = failure;
+        try {
+            mChannel.onAck(false, 0);
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+        mConn.writeFailure = null;
+        assertTrue(a.isSuccess());
+        assertSame(failure, b.cause());
+        assertSame(failure, c.cause());
+        assertTrue(mChannel.isWritable());
+
+        // Nothing is left in flight
+        Future<Void> d = mChannel.write("k");
+        assertEquals(frames("WRTE k"), mConn.frames());
+        mChannel.onAck(false, 0);
+        assertTrue(d.isSuccess());
+    }
+
+    @Test
+    public void receive_acksEachFrame() throws Exception {
+        mChannel.onOpened(REMOTE_ID, false, 0);
+        mChannel.onData(data("ab"));
+        mChannel.onData(data("c"));
+        assertEquals("abc", mChannel.read.toString());
+        assertEquals(frames("OKAY 0", "OKAY 0"), mConn.frames());
+    }
+
+    @Test
+    public void receive_holdAcks() throws Exception {
+        mChannel.onOpened(REMOTE_ID, false, 0);
+        mChannel.holdAcks(true);
+        mChannel.onData(data("ab"));
+        mChannel.onData(data("c"));
+        assertEquals(Collections.emptyList(), mConn.frames());
+
+        // Every held frame is acknowledged on release
+        mChannel.holdAcks(false);
+        assertEquals(frames("OKAY 0", "OKAY 0"), mConn.frames());
+    }
+
+    @Test
+    public void receive_windowUpdates() throws Exception {
+        mConn.receiveWindow = 10;
+        mChannel.onOpened(REMOTE_ID, true, 10);
+        mChannel.onData(data("abc"));
+        assertEquals(Collections.emptyList(), mConn.frames());
+
+        // Once half of the window is used up
+        mChannel.onData(data("de"));
+        assertEquals(frames("OKAY 5"), mConn.frames());
+
+        mChannel.holdAcks(true);
+        mChannel.onData(data("fghijk"));
+        assertEquals(Collections.emptyList(), mConn.frames());
+        mChannel.holdAcks(false);
+        assertEquals(frames("OKAY 6"), mConn.frames());
+    }
+}
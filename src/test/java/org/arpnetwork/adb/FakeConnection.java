@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+// A Connection which records what its channels send instead of writing to a
+// socket. Frames are logged as "WRTE <payload>", "OKAY <bytes>" and "CLSE".
+// Like a netty channel, writes made off the executor are queued to it.
+class FakeConnection extends Connection {
+    int maxPayload = 4096;
+    int receiveWindow;
+    EventExecutor executor = ImmediateEventExecutor.INSTANCE;
+    // Thrown by write when set
+    RuntimeException writeFailure;
+    // Called on the executor for each WRTE recorded
+    WriteListener writeListener;
+
+    interface WriteListener {
+        void onWrite(int bytes);
+    }
+
+    private final List<String> mFrames = new ArrayList<>();
+
+    FakeConnection() {
+        super(null, "localhost", 0);
+    }
+
+    synchronized List<String> frames() {
+        List<String> frames = new ArrayList<>(mFrames);
+        mFrames.clear();
+        return frames;
+    }
+
+    @Override
+    public void write(int id, int remoteId, final ByteBuf buf) {
+        if (writeFailure != null) {
+            buf.release();
+            throw writeFailure;
+        }
+
+        Runnable record = new Runnable() {
+            @Override
+            public void run() {
+                int bytes = buf.readableBytes();
+                synchronized (FakeConnection.this) {
+                    mFrames.add("WRTE " + buf.toString(CharsetUtil.ISO_8859_1));
+                }
+                buf.release();
+                if (writeListener != null) {
+                    writeListener.onWrite(bytes);
+                }
+            }
+        };
+        if (executor.inEventLoop()) {
+            record.run();
+        } else {
+            executor.execute(record);
+        }
+    }
+
+    @Override
+    public synchronized void close(int id, int remoteId) {
+        mFrames.add("CLSE");
+    }
+
+    @Override
+    public synchronized void sendReady(int id, int remoteId, int bytes) {
+        mFrames.add("OKAY " + (receiveWindow > 0 ? bytes : 0));
+    }
+
+    @Override
+    public ByteBufAllocator alloc() {
+        return UnpooledByteBufAllocator.DEFAULT;
+    }
+
+    @Override
+    public int maxPayload() {
+        return maxPayload;
+    }
+
+    @Override
+    public int receiveWindow() {
+        return receiveWindow;
+    }
+
+    @Override
+    public <V> Promise<V> newPromise() {
+        return executor.newPromise();
+    }
+
+    @Override
+    public EventExecutor executor() {
+        return executor;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.Test;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.*;
+
+public class FlushBatchHandlerTest {
+    private static final int WRTE = 0x45545257;
+    private static final int MAX_BYTES = 1024;
+    private static final int MAX_DELAY = 20;
+
+    private static EmbeddedChannel channel() {
+        return new EmbeddedChannel(new NettyConnection.FlushBatchHandler(MAX_BYTES, MAX_DELAY));
+    }
+
+    private static Message message(int length) {
+        return new Message(WRTE, 1, 2, new byte[length]);
+    }
+
+    @Test
+    public void flushesAtReadComplete() {
+        EmbeddedChannel ch = channel();
+
+        // Flushes made while dispatching a read wait for the read to complete
+        ch.pipeline().fireChannelRead(new Object());
+        ch.writeAndFlush(message(8));
+        ch.writeAndFlush(message(8));
+        assertNull(ch.readOutbound());
+
+        ch.pipeline().fireChannelReadComplete();
+        assertNotNull(ch.readOutbound());
+        assertNotNull(ch.readOutbound());
+        assertNull(ch.readOutbound());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    public void flushesAtMaxBytes() {
+        EmbeddedChannel ch = channel();
+
+        ch.writeAndFlush(message(100));
+        assertNull(ch.readOutbound());
+
+        // Header and payload together reach maxBytes
+        ch.writeAndFlush(message(MAX_BYTES - 100 - 2 * Message.HEADER_SIZE));
+        assertNotNull(ch.readOutbound());
+        assertNotNull(ch.readOutbound());
+        assertNull(ch.readOutbound());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    public void flushesAtMaxBytesWhileReading() {
+        EmbeddedChannel ch = channel();
+
+        ch.pipeline().fireChannelRead(new Object());
+        ch.writeAndFlush(message(MAX_BYTES));
+        assertNotNull(ch.readOutbound());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    public void flushesAfterMaxDelay() throws Exception {
+        EmbeddedChannel ch = channel();
+
+        ch.writeAndFlush(message(8));
+        ch.runPendingTasks();
+        assertNull(ch.readOutbound());
+
+        Thread.sleep(MAX_DELAY * 2);
+        ch.runPendingTasks();
+        assertNotNull(ch.readOutbound());
+        assertNull(ch.readOutbound());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    public void flushesOnClose() {
+        EmbeddedChannel ch = channel();
+
+        ch.writeAndFlush(message(8));
+        assertNull(ch.readOutbound());
+        ch.close();
+        assertNotNull(ch.readOutbound());
+        ch.finishAndReleaseAll();
+    }
+}
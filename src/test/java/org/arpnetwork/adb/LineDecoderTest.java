@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.buffer.Unpooled;
+
+import static org.junit.Assert.*;
+
+public class LineDecoderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private List<String> mLines;
+    private LineDecoder mDecoder;
+
+    @Before
+    public void setUp() {
+        mLines = new ArrayList<>();
+        mDecoder = new LineDecoder(UTF_8, new LineDecoder.LineListener() {
+            @Override
+            public void onLine(CharSequence line) {
+                mLines.add(line.toString());
+            }
+        });
+    }
+
+    private void decode(byte[] data, int from, int to) {
+        mDecoder.decode(Unpooled.wrappedBuffer(data, from, to - from));
+    }
+
+    @Test
+    public void decode_splitsLines() {
+        decode("one\ntwo\n\nthree".getBytes(UTF_8), 0, 14);
+        assertEquals(Arrays.asList("one", "two", ""), mLines);
+
+        mDecoder.flush();
+        assertEquals(Arrays.asList("one", "two", "", "three"), mLines);
+    }
+
+    @Test
+    public void decode_stripsCrLf() {
+        byte[] data = "one\r\ntwo\r\n".getBytes(UTF_8);
+        decode(data, 0, data.length);
+        assertEquals(Arrays.asList("one", "two"), mLines);
+    }
+
+    @Test
+    public void decode_crLfSplitAcrossCalls() {
+        byte[] data = "one\r\ntwo\rthree\n".getBytes(UTF_8);
+        decode(data, 0, 4);
+        decode(data, 4, data.length);
+        // A lone CR is part of the line
+        assertEquals(Arrays.asList("one", "two\rthree"), mLines);
+    }
+
+    @Test
+    public void decode_multibyteSplitAtEveryByte() {
+        String text = "h\u00e9\u4e2d\ud83d\ude00\n\u00e9nd\n";
+        byte[] data = text.getBytes(UTF_8);
+
+        for (int i = 0; i < data.length; ++i) {
+            decode(data, i, i + 1);
+        }
+        assertEquals(Arrays.asList("h\u00e9\u4e2d\ud83d\ude00", "\u00e9nd"), mLines);
+    }
+
+    @Test
+    public void decode_multibyteSplitBetweenCalls() {
+        byte[] data = "a\u4e2db\n".getBytes(UTF_8);
+
+        for (int split = 1; split < data.length; ++split) {
+            mLines.clear();
+            decode(data, 0, split);
+            decode(data, split, data.length);
+            assertEquals(Arrays.asList("a\u4e2db"), mLines);
+        }
+    }
+
+    @Test
+    public void flush_replacesTruncatedCharacter() {
+        byte[] data = "ab\u4e2d".getBytes(UTF_8);
+        decode(data, 0, data.length - 1);
+        mDecoder.flush();
+        assertEquals(Arrays.asList("ab\ufffd"), mLines);
+    }
+
+    @Test
+    public void decode_longLineInPieces() {
+        char[] chars = new char[LineDecoder.LINE_MAX + 10];
+        Arrays.fill(chars, 'x');
+        byte[] data = (new String(chars) + "\n").getBytes(UTF_8);
+        decode(data, 0, data.length);
+
+        int total = 0;
+        for (String line : mLines) {
+            assertTrue(line.length() <= LineDecoder.LINE_MAX);
+            total += line.length();
+        }
+        assertEquals(chars.length, total);
+    }
+}
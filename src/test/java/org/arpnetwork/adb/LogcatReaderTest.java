@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import static org.junit.Assert.*;
+
+public class LogcatReaderTest {
+    // Answers the SDK lookup and opens logcat without a device
+    private static class LogcatConnection extends FakeConnection {
+        final String sdk;
+        RawChannel channel;
+
+        LogcatConnection(String sdk) {
+            this.sdk = sdk;
+        }
+
+        @Override
+        public Future<ShellResult> execute(String cmd, ShellLimits limits) {
+            return ImmediateEventExecutor.INSTANCE.newSucceededFuture(new ShellResult(0, sdk + "\n", ""));
+        }
+
+        @Override
+        public RawChannel openExec(String cmd, Channel.Initializer<RawChannel> initializer) {
+            channel = new RawChannel(this, 1);
+            initializer.init(channel);
+            channel.onOpened(100, false, 0);
+            return channel;
+        }
+    }
+
+    private LogcatConnection mConn;
+    private final List<String> mEntries = new ArrayList<>();
+    private boolean mClosed;
+
+    private void start(String sdk) {
+        mConn = new LogcatConnection(sdk);
+        new LogcatReader(mConn, new LogcatReader.Sink() {
+            @Override
+            public void onEntry(LogEntry e) {
+                mEntries.add(e.pid + " " + e.tid + " " + e.sec + "." + e.nsec + " " + e.lid + " " + e.uid
+                        + " " + e.priority + " " + e.tag + ": " + e.message);
+            }
+
+            @Override
+            public void onClosed() {
+                mClosed = true;
+            }
+        }).start(null);
+        assertNotNull(mConn.channel);
+    }
+
+    // <priority><tag\0><message\0> behind a header of hdrSize bytes, 0 for v1
+    private static ByteBuf record(int hdrSize, int lid, int uid, String tag, String message) {
+        byte[] payload = ("\4" + tag + "\0" + message + "\0").getBytes(CharsetUtil.UTF_8);
+        int size = hdrSize == 0 ? 20 : hdrSize;
+        ByteBuf buf = Unpooled.buffer(size + payload.length);
+        buf.writeShortLE(payload.length);
+        buf.writeShortLE(hdrSize);
+        buf.writeIntLE(10);
+        buf.writeIntLE(11);
+        buf.writeIntLE(1500000000);
+        buf.writeIntLE(2000);
+        if (size >= 24) {
+            buf.writeIntLE(lid);
+        }
+        if (size >= 28) {
+            buf.writeIntLE(uid);
+        }
+        buf.writeBytes(payload);
+        return buf;
+    }
+
+    private void feed(ByteBuf buf) throws Exception {
+        try {
+            mConn.channel.onData(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void decode_v1() throws Exception {
+        start("19");
+        feed(record(0, 0, 0, "tag", "hello"));
+
+        assertEquals(1, mEntries.size());
+        assertEquals("10 11 1500000000.2000 -1 0 4 tag: hello", mEntries.get(0));
+    }
+
+    @Test
+    public void decode_v2_euidBeforeLogd() throws Exception {
+        start("19");
+        feed(record(24, 1000, 0, "tag", "hello"));
+
+        assertEquals("10 11 1500000000.2000 -1 1000 4 tag: hello", mEntries.get(0));
+    }
+
+    @Test
+    public void decode_v3_lidWithLogd() throws Exception {
+        start("23");
+        feed(record(24, LogEntry.LOG_ID_SYSTEM, 0, "tag", "hello"));
+
+        assertEquals("10 11 1500000000.2000 3 0 4 tag: hello", mEntries.get(0));
+    }
+
+    @Test
+    public void decode_v4() throws Exception {
+        start("28");
+        feed(record(28, LogEntry.LOG_ID_MAIN, 10001, "tag", "hello"));
+
+        assertEquals("10 11 1500000000.2000 0 10001 4 tag: hello", mEntries.get(0));
+    }
+
+    @Test
+    public void decode_recordSplitAcrossPackets() throws Exception {
+        start("28");
+        ByteBuf buf = Unpooled.wrappedBuffer(record(28, 0, 1, "a", "first"), record(28, 0, 2, "b", "second"));
+        int length = buf.readableBytes();
+        // Inside the first header, inside the second payload, the rest
+        feed(buf.copy(0, 3));
+        assertTrue(mEntries.isEmpty());
+        feed(buf.copy(3, length - 8));
+        assertEquals(1, mEntries.size());
+        feed(buf.copy(length - 5, 5));
+        buf.release();
+
+        assertEquals(2, mEntries.size());
+        assertEquals("10 11 1500000000.2000 0 1 4 a: first", mEntries.get(0));
+        assertEquals("10 11 1500000000.2000 0 2 4 b: second", mEntries.get(1));
+    }
+
+    @Test
+    public void decode_rejectsShortHeader() throws Exception {
+        start("28");
+        mConn.frames();
+        ByteBuf buf = record(28, 0, 0, "tag", "hello");
+        buf.setShortLE(2, 16);
+        feed(buf);
+
+        assertTrue(mEntries.isEmpty());
+        assertTrue(mConn.frames().contains("CLSE"));
+
+        // Ignored until the close completes
+        feed(record(28, 0, 0, "tag", "hello"));
+        assertTrue(mEntries.isEmpty());
+        mConn.channel.onClosed();
+        assertTrue(mClosed);
+    }
+}
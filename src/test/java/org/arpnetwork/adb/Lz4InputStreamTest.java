@@ -0,0 +1,264 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+import static org.junit.Assert.*;
+
+public class Lz4InputStreamTest {
+    private static final XXHash32 HASH = XXHashFactory.safeInstance().hash32();
+
+    // Linked 64 KB blocks with block and content checksums, as adbd sends them
+    private static final int FLG_LINKED = 0x40 | 0x10 | 0x04;
+    private static final int BD_64KB = 4 << 4;
+
+    // Builds a frame by hand, lz4-java only writes independent blocks
+    private static class FrameBuilder {
+        private ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private ByteArrayOutputStream mContent = new ByteArrayOutputStream();
+        private int mFlg;
+
+        FrameBuilder(int flg, int bd) {
+            mFlg = flg;
+            writeIntLE(0x184D2204);
+            byte[] descriptor = { (byte) flg, (byte) bd };
+            mOut.write(descriptor, 0, 2);
+            mOut.write((HASH.hash(descriptor, 0, 2, 0) >> 8) & 0xFF);
+        }
+
+        FrameBuilder raw(byte[] data) {
+            block(data, 0x80000000);
+            mContent.write(data, 0, data.length);
+            return this;
+        }
+
+        // content is what the block decodes to
+        FrameBuilder compressed(byte[] block, byte[] content) {
+            block(block, 0);
+            mContent.write(content, 0, content.length);
+            return this;
+        }
+
+        byte[] end() {
+            writeIntLE(0);
+            if ((mFlg & 0x04) != 0) {
+                byte[] content = mContent.toByteArray();
+                writeIntLE(HASH.hash(content, 0, content.length, 0));
+            }
+            return mOut.toByteArray();
+        }
+
+        byte[] content() {
+            return mContent.toByteArray();
+        }
+
+        private void block(byte[] data, int flags) {
+            writeIntLE(data.length | flags);
+            mOut.write(data, 0, data.length);
+            if ((mFlg & 0x10) != 0) {
+                writeIntLE(HASH.hash(data, 0, data.length, 0));
+            }
+        }
+
+        private void writeIntLE(int v) {
+            mOut.write(v);
+            mOut.write(v >> 8);
+            mOut.write(v >> 16);
+            mOut.write(v >> 24);
+        }
+    }
+
+    // A block of one sequence copying length bytes from offset back, then
+    // five literals as the format requires at the end.
+    private static byte[] matchBlock(int offset, int length, byte[] literals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int extra = length - 4;
+        out.write(Math.min(extra, 15));
+        out.write(offset & 0xFF);
+        out.write(offset >> 8);
+        if (extra >= 15) {
+            extra -= 15;
+            while (extra >= 255) {
+                out.write(255);
+                extra -= 255;
+            }
+            out.write(extra);
+        }
+        out.write(literals.length << 4);
+        out.write(literals, 0, literals.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] decode(byte[] frame) throws IOException {
+        return readAll(new Lz4InputStream(new ByteArrayInputStream(frame)));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] text(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            // Compressible, but not trivially
+            b[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return b;
+    }
+
+    @Test
+    public void independentBlocksFromLz4Java() throws Exception {
+        byte[] content = text(300 * 1024, 1);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        LZ4FrameOutputStream out = new LZ4FrameOutputStream(frame, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB);
+        out.write(content);
+        out.close();
+
+        assertArrayEquals(content, decode(frame.toByteArray()));
+    }
+
+    @Test
+    public void linkedBlocks() throws Exception {
+        byte[] first = "The quick brown fox jumps over the lazy dog. ".getBytes();
+        // Copies the first 40 bytes of the previous block
+        byte[] second = Arrays.copyOf(first, 45);
+        System.arraycopy("12345".getBytes(), 0, second, 40, 5);
+
+        FrameBuilder frame = new FrameBuilder(FLG_LINKED, BD_64KB)
+                .raw(first)
+                .compressed(matchBlock(first.length, 40, "12345".getBytes()), second);
+        byte[] content = frame.content();
+        assertArrayEquals(content, decode(frame.end()));
+    }
+
+    @Test
+    public void linkedBlocks_historyAcrossManyBlocks() throws Exception {
+        // Enough blocks for the window to be compacted more than once
+        FrameBuilder frame = new FrameBuilder(FLG_LINKED, BD_64KB);
+        for (int i = 0; i < 6; ++i) {
+            frame.raw(text(64 * 1024, i));
+        }
+        byte[] history = frame.content();
+
+        // A long, overlapping and a far match, each in a block of its own
+        int[][] matches = { { 65535, 1000 }, { 3, 60000 }, { 1, 20 } };
+        for (int[] m : matches) {
+            byte[] content = frame.content();
+            byte[] expected = new byte[m[1] + 5];
+            int from = content.length - m[0];
+            for (int i = 0; i < m[1]; ++i) {
+                // Copied one byte at a time, as overlapping matches are
+                expected[i] = i < m[0] ? content[from + i] : expected[i - m[0]];
+            }
+            System.arraycopy("vwxyz".getBytes(), 0, expected, m[1], 5);
+            frame.compressed(matchBlock(m[0], m[1], "vwxyz".getBytes()), expected);
+        }
+
+        byte[] content = frame.content();
+        assertTrue(content.length > history.length);
+        assertArrayEquals(content, decode(frame.end()));
+    }
+
+    @Test
+    public void concatenatedAndSkippableFrames() throws Exception {
+        byte[] a = new FrameBuilder(FLG_LINKED, BD_64KB).raw("abc".getBytes()).end();
+        byte[] skippable = { 0x5A, 0x2A, 0x4D, 0x18, 2, 0, 0, 0, 9, 9 };
+        byte[] b = new FrameBuilder(FLG_LINKED, BD_64KB).raw("def".getBytes()).end();
+
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        in.write(a);
+        in.write(skippable);
+        in.write(b);
+        assertArrayEquals("abcdef".getBytes(), decode(in.toByteArray()));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsMatchBeforeHistory() throws Exception {
+        byte[] frame = new FrameBuilder(FLG_LINKED, BD_64KB)
+                .raw("abcd".getBytes())
+                .compressed(matchBlock(5, 4, "12345".getBytes()), new byte[0])
+                .end();
+        decode(frame);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void independentBlocksHaveNoHistory() throws Exception {
+        byte[] frame = new FrameBuilder(0x40 | 0x20, BD_64KB)
+                .raw("abcd".getBytes())
+                .compressed(matchBlock(4, 4, "12345".getBytes()), new byte[0])
+                .end();
+        decode(frame);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsBadBlockChecksum() throws Exception {
+        byte[] frame = new FrameBuilder(FLG_LINKED, BD_64KB).raw("abcd".getBytes()).end();
+        // The block checksum follows the 7 byte header, block size and data
+        frame[7 + 4 + 4] ^= 1;
+        decode(frame);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsBadContentChecksum() throws Exception {
+        byte[] frame = new FrameBuilder(0x40 | 0x04, BD_64KB).raw("abcd".getBytes()).end();
+        frame[frame.length - 1] ^= 1;
+        decode(frame);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsBadHeaderChecksum() throws Exception {
+        byte[] frame = new FrameBuilder(FLG_LINKED, BD_64KB).raw("abcd".getBytes()).end();
+        frame[6] ^= 1;
+        decode(frame);
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejectsTruncatedFrame() throws Exception {
+        byte[] frame = new FrameBuilder(FLG_LINKED, BD_64KB).raw("abcd".getBytes()).end();
+        decode(Arrays.copyOf(frame, frame.length - 6));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsTruncatedBlock() throws Exception {
+        byte[] block = matchBlock(4, 4, "12345".getBytes());
+        byte[] frame = new FrameBuilder(FLG_LINKED, BD_64KB)
+                .raw("abcd".getBytes())
+                .compressed(Arrays.copyOf(block, 2), new byte[0])
+                .end();
+        decode(frame);
+    }
+}
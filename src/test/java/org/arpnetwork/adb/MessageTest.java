@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import io.netty.util.CharsetUtil;
+
+import static org.junit.Assert.*;
+
+public class MessageTest {
+    private static final int WRTE = 0x45545257;
+
+    private static ByteBuf frame(int command, int arg0, int arg1, byte[] data, boolean checksum) {
+        Message msg = new Message(command, arg0, arg1, data);
+        ByteBuf buf = Unpooled.buffer();
+        msg.writeHeaderTo(buf, checksum);
+        buf.writeBytes(data);
+        return buf;
+    }
+
+    private static ByteBuf header(int length) {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeIntLE(WRTE);
+        buf.writeIntLE(1);
+        buf.writeIntLE(2);
+        buf.writeIntLE(length);
+        buf.writeIntLE(0);
+        buf.writeIntLE(~WRTE);
+        return buf;
+    }
+
+    @Test
+    public void readFrom_waitsForWholeFrame() throws Exception {
+        ByteBuf whole = frame(WRTE, 1, 2, "hello".getBytes(), true);
+        ByteBuf buf = Unpooled.buffer();
+
+        for (int i = 0; i < whole.readableBytes(); ++i) {
+            assertNull(Message.readFrom(buf, true));
+            assertEquals(0, buf.readerIndex());
+            buf.writeByte(whole.getByte(i));
+        }
+
+        Message msg = Message.readFrom(buf, true);
+        assertNotNull(msg);
+        assertEquals(WRTE, msg.command());
+        assertEquals(1, msg.arg0());
+        assertEquals(2, msg.arg1());
+        assertEquals("hello", msg.data().toString(CharsetUtil.US_ASCII));
+        assertFalse(buf.isReadable());
+        msg.release();
+    }
+
+    @Test
+    public void readFrom_payloadIsRetainedSlice() throws Exception {
+        ByteBuf buf = frame(WRTE, 1, 2, "hello".getBytes(), false);
+
+        Message msg = Message.readFrom(buf, false);
+        assertEquals(2, buf.refCnt());
+        assertSame(buf, msg.data().unwrap());
+        msg.release();
+        assertEquals(1, buf.refCnt());
+        buf.release();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void readFrom_rejectsOversizeLength() throws Exception {
+        // Rejected from the header alone, without waiting for the body
+        Message.readFrom(header(Message.MAXDATA + 1), false);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void readFrom_rejectsNegativeLength() throws Exception {
+        Message.readFrom(header(-1), false);
+    }
+
+    @Test
+    public void readFrom_acceptsMaxLength() throws Exception {
+        ByteBuf buf = header(Message.MAXDATA);
+        assertNull(Message.readFrom(buf, false));
+        buf.writeZero(Message.MAXDATA);
+
+        Message msg = Message.readFrom(buf, false);
+        assertEquals(Message.MAXDATA, msg.data().readableBytes());
+        msg.release();
+    }
+
+    @Test
+    public void readFrom_checksum() throws Exception {
+        ByteBuf buf = frame(WRTE, 1, 2, "hello".getBytes(), false);
+
+        // A zero checksum is only accepted once checksums are skipped
+        try {
+            Message.readFrom(buf.duplicate(), true);
+            fail();
+        } catch (ProtocolException e) {
+            // expected
+        }
+        Message msg = Message.readFrom(buf, false);
+        assertNotNull(msg);
+        msg.release();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void readFrom_rejectsBadMagic() throws Exception {
+        ByteBuf buf = frame(WRTE, 1, 2, new byte[0], false);
+        buf.setIntLE(20, WRTE);
+        Message.readFrom(buf, false);
+    }
+
+    @Test
+    public void decoder_splitsAndJoinsFrames() {
+        EmbeddedChannel ch = new EmbeddedChannel(new NettyConnection.MessageDecoder());
+
+        ByteBuf first = frame(WRTE, 1, 2, "abc".getBytes(), false);
+        ByteBuf second = frame(WRTE, 3, 4, "defgh".getBytes(), false);
+        ByteBuf both = Unpooled.wrappedBuffer(first, second);
+
+        // The first frame and part of the second, then the rest
+        int split = first.readableBytes() + 7;
+        assertTrue(ch.writeInbound(both.readRetainedSlice(split)));
+        Message msg = ch.readInbound();
+        assertEquals(1, msg.arg0());
+        assertEquals(3, msg.data().readableBytes());
+        msg.release();
+        assertNull(ch.readInbound());
+
+        assertTrue(ch.writeInbound(both));
+        msg = ch.readInbound();
+        assertEquals(3, msg.arg0());
+        assertEquals(5, msg.data().readableBytes());
+        msg.release();
+        assertNull(ch.readInbound());
+
+        assertFalse(ch.finish());
+    }
+
+    @Test
+    public void decoder_rejectsOversizeLength() {
+        EmbeddedChannel ch = new EmbeddedChannel(new NettyConnection.MessageDecoder());
+        try {
+            ch.writeInbound(header(Message.MAXDATA + 1));
+            fail();
+        } catch (DecoderException e) {
+            assertTrue(e.getCause() instanceof ProtocolException);
+        }
+        // The header is left unread, it would fail again on close
+        ch.pipeline().removeFirst();
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    public void decoder_checksum() {
+        NettyConnection.MessageDecoder decoder = new NettyConnection.MessageDecoder();
+        EmbeddedChannel ch = new EmbeddedChannel(decoder);
+
+        // Verified once enabled
+        decoder.setChecksum(true);
+        assertTrue(ch.writeInbound(frame(WRTE, 1, 2, "abc".getBytes(), true)));
+        ((Message) ch.readInbound()).release();
+        try {
+            ch.writeInbound(frame(WRTE, 1, 2, "abc".getBytes(), false));
+            fail();
+        } catch (DecoderException e) {
+            assertTrue(e.getCause() instanceof ProtocolException);
+        }
+        ch.finishAndReleaseAll();
+    }
+}
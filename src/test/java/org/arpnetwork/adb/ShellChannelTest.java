@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import static org.junit.Assert.*;
+
+public class ShellChannelTest {
+    private ShellChannel mChannel;
+    private List<String> mEvents;
+
+    private static ByteBuf packet(int id, String data) {
+        return new ShellMessage(id, data).encode(UnpooledByteBufAllocator.DEFAULT);
+    }
+
+    @Before
+    public void setUp() {
+        mChannel = new ShellChannel(new FakeConnection(), 1);
+        mEvents = new ArrayList<>();
+        mChannel.setLineListener(new ShellChannel.ShellLineListener() {
+            @Override
+            public void onStdout(ShellChannel ch, CharSequence line) {
+                mEvents.add("out " + line);
+            }
+
+            @Override
+            public void onStderr(ShellChannel ch, CharSequence line) {
+                mEvents.add("err " + line);
+            }
+
+            @Override
+            public void onExit(ShellChannel ch, int code) {
+                mEvents.add("exit " + code);
+            }
+        });
+        mChannel.onOpened(100, false, 0);
+    }
+
+    @Test
+    public void lines_flushedOnExit() throws Exception {
+        mChannel.onData(packet(ShellMessage.STDOUT, "a\nb"));
+        mChannel.onData(packet(ShellMessage.STDERR, "c"));
+        mChannel.onData(packet(ShellMessage.EXIT, "\u0002"));
+        mChannel.onClosed();
+        assertEquals(Arrays.asList("out a", "out b", "err c", "exit 2"), mEvents);
+    }
+
+    @Test
+    public void lines_flushedOnCloseWithoutExit() throws Exception {
+        mChannel.onData(packet(ShellMessage.STDOUT, "a\nb"));
+        mChannel.onData(packet(ShellMessage.STDERR, "c\nd"));
+        mChannel.onClosed();
+        assertEquals(Arrays.asList("out a", "err c", "out b", "err d"), mEvents);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.AbstractByteBufAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import static org.junit.Assert.*;
+
+public class ShellExecutionTest {
+    // Keeps what it hands out, to check it is released
+    private static class RecordingAllocator extends AbstractByteBufAllocator {
+        final List<ByteBuf> buffers = new ArrayList<>();
+
+        @Override
+        protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+            ByteBuf buf = Unpooled.buffer(initialCapacity, maxCapacity);
+            buffers.add(buf);
+            return buf;
+        }
+
+        @Override
+        protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+            return newHeapBuffer(initialCapacity, maxCapacity);
+        }
+
+        @Override
+        public boolean isDirectBufferPooled() {
+            return false;
+        }
+
+        void assertReleased() {
+            assertFalse(buffers.isEmpty());
+            for (ByteBuf buf : buffers) {
+                assertEquals(0, buf.refCnt());
+            }
+        }
+    }
+
+    private FakeConnection mConn;
+    private ShellChannel mChannel;
+    private RecordingAllocator mAlloc;
+    private EventExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mConn = new FakeConnection();
+        mChannel = new ShellChannel(mConn, 1);
+        mChannel.onOpened(100, false, 0);
+        mAlloc = new RecordingAllocator();
+    }
+
+    @After
+    public void tearDown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+
+    private ShellExecution execution(int headBytes, int tailBytes) {
+        ShellLimits limits = new ShellLimits(headBytes, tailBytes, 0, TimeUnit.SECONDS);
+        ShellExecution execution = new ShellExecution(mChannel, limits, mAlloc, ImmediateEventExecutor.INSTANCE);
+        execution.start();
+        return execution;
+    }
+
+    private void stdout(ShellExecution execution, String data) {
+        ByteBuf buf = Unpooled.copiedBuffer(data, CharsetUtil.UTF_8);
+        execution.onStdout(mChannel, buf);
+        buf.release();
+    }
+
+    private void stderr(ShellExecution execution, String data) {
+        ByteBuf buf = Unpooled.copiedBuffer(data, CharsetUtil.UTF_8);
+        execution.onStderr(mChannel, buf);
+        buf.release();
+    }
+
+    @Test
+    public void output_withinLimits() {
+        ShellExecution e = execution(8, 8);
+        stdout(e, "abc");
+        stderr(e, "err");
+        stdout(e, "def");
+        e.onExit(mChannel, 2);
+
+        ShellResult r = e.promise().getNow();
+        assertEquals(2, r.exitCode);
+        assertEquals("abcdef", r.stdout);
+        assertEquals("err", r.stderr);
+        assertEquals(0, r.stdoutDropped);
+        assertFalse(r.timedOut);
+        mAlloc.assertReleased();
+    }
+
+    @Test
+    public void output_headOnly() {
+        ShellExecution e = execution(4, 0);
+        stdout(e, "abc");
+        stdout(e, "defgh");
+        e.onExit(mChannel, 0);
+
+        ShellResult r = e.promise().getNow();
+        assertEquals("abcd", r.stdout);
+        assertEquals(4, r.stdoutDropped);
+        assertEquals("", r.stderr);
+        assertEquals(0, r.stderrDropped);
+        mAlloc.assertReleased();
+    }
+
+    @Test
+    public void output_headAndTailWrapAround() {
+        ShellExecution e = execution(3, 4);
+        stdout(e, "abc");
+        stdout(e, "de");
+        // Wraps round the ring
+        stdout(e, "fgh");
+        assertFalse(e.promise().isDone());
+        stdout(e, "ij");
+        e.onExit(mChannel, 0);
+
+        ShellResult r = e.promise().getNow();
+        assertEquals("abcghij", r.stdout);
+        assertEquals(3, r.stdoutDropped);
+        mAlloc.assertReleased();
+    }
+
+    @Test
+    public void output_writeLargerThanTail() {
+        ShellExecution e = execution(2, 3);
+        stdout(e, "abcdefghij");
+        stderr(e, "0123");
+        e.onExit(mChannel, 0);
+
+        ShellResult r = e.promise().getNow();
+        assertEquals("abhij", r.stdout);
+        assertEquals(5, r.stdoutDropped);
+        assertEquals("0123", r.stderr);
+        assertEquals(0, r.stderrDropped);
+        mAlloc.assertReleased();
+    }
+
+    @Test
+    public void output_tailOnly() {
+        ShellExecution e = execution(0, 3);
+        stdout(e, "ab");
+        stdout(e, "cd");
+        e.onExit(mChannel, 0);
+
+        ShellResult r = e.promise().getNow();
+        assertEquals("bcd", r.stdout);
+        assertEquals(1, r.stdoutDropped);
+    }
+
+    @Test
+    public void closedWithoutExit_releases() {
+        ShellExecution e = execution(8, 8);
+        stdout(e, "abc");
+        e.onClosed(mChannel);
+
+        assertTrue(e.promise().cause() instanceof ClosedChannelException);
+        mAlloc.assertReleased();
+    }
+
+    @Test
+    public void timeout_releasesAndClosesChannel() throws Exception {
+        mExecutor = new DefaultEventExecutor();
+        final ShellLimits limits = new ShellLimits(4, 4, 50, TimeUnit.MILLISECONDS);
+        final ShellExecution e = mExecutor.submit(new Callable<ShellExecution>() {
+            @Override
+            public ShellExecution call() {
+                ShellExecution e = new ShellExecution(mChannel, limits, mAlloc, mExecutor);
+                e.start();
+                stdout(e, "abcdefghijk");
+                return e;
+            }
+        }).get();
+        mConn.frames();
+
+        ShellResult r = e.promise().get(5, TimeUnit.SECONDS);
+        assertTrue(r.timedOut);
+        assertEquals(-1, r.exitCode);
+        assertEquals("abcdhijk", r.stdout);
+        assertEquals(3, r.stdoutDropped);
+        assertTrue(mConn.frames().contains("CLSE"));
+
+        // Output racing the close is dropped, the buffers stay released
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                stdout(e, "late");
+                e.onExit(mChannel, 0);
+                e.onClosed(mChannel);
+            }
+        }).sync();
+        mAlloc.assertReleased();
+        assertSame(r, e.promise().getNow());
+    }
+}
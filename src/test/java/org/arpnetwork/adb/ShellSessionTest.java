@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ShellSessionTest {
+    private static final Pattern MARKER = Pattern.compile("__ARP_[0-9a-f]{16}_[0-9]+");
+
+    private FakeConnection mConn;
+    private ShellChannel mChannel;
+    private ShellSession mSession;
+
+    @Before
+    public void setUp() {
+        mConn = new FakeConnection() {
+            @Override
+            public ShellChannel openShell(String cmd, Channel.Initializer<ShellChannel> initializer) {
+                mChannel = new ShellChannel(this, 1);
+                initializer.init(mChannel);
+                mChannel.onOpened(100, false, 0);
+                return mChannel;
+            }
+        };
+        mSession = new ShellSession(mConn);
+    }
+
+    // Runs cmd and returns the marker written after it. The device acks the
+    // script, so the next one goes out at once.
+    private String execute(String cmd, Future<?>[] result) {
+        result[0] = mSession.execute(cmd);
+        String script = null;
+        for (String frame : mConn.frames()) {
+            if (frame.startsWith("WRTE ")) {
+                assertNull(script);
+                script = frame;
+            }
+        }
+        assertNotNull(script);
+        mChannel.onAck(false, 0);
+        assertTrue(script.contains(Util.shellQuote(cmd)));
+        Matcher m = MARKER.matcher(script);
+        assertTrue(m.find());
+        return m.group();
+    }
+
+    private void stdout(String data) throws Exception {
+        feed(ShellMessage.STDOUT, data);
+    }
+
+    private void stderr(String data) throws Exception {
+        feed(ShellMessage.STDERR, data);
+    }
+
+    private void feed(int id, String data) throws Exception {
+        ByteBuf buf = new ShellMessage(id, data).encode(UnpooledByteBufAllocator.DEFAULT);
+        try {
+            mChannel.onData(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static ShellResult result(Future<?> future) {
+        assertTrue(future.isSuccess());
+        return (ShellResult) future.getNow();
+    }
+
+    @Test
+    public void execute_outputWithoutTrailingNewline() throws Exception {
+        Future<?>[] f = new Future<?>[1];
+        String marker = execute("printf abc", f);
+        stdout("abc\n" + marker + " 0\n");
+        assertFalse(f[0].isDone());
+        stderr("\n" + marker + "\n");
+
+        ShellResult r = result(f[0]);
+        assertEquals(0, r.exitCode);
+        assertEquals("abc", r.stdout);
+        assertEquals("", r.stderr);
+    }
+
+    @Test
+    public void execute_outputWithTrailingNewline() throws Exception {
+        Future<?>[] f = new Future<?>[1];
+        String marker = execute("echo abc", f);
+        stdout("abc\n\n" + marker + " 0\n");
+        stderr("\n" + marker + "\n");
+
+        assertEquals("abc\n", result(f[0]).stdout);
+    }
+
+    @Test
+    public void execute_markerSplitAcrossPackets() throws Exception {
+        String out = "line\n";
+        String err = "warning\n";
+        Future<?>[] f = new Future<?>[1];
+        String marker = execute("cmd", f);
+        String stdout = out + "\n" + marker + " 3\n";
+        String stderr = err + "\n" + marker + "\n";
+        // One byte at a time, so every split point is taken
+        for (int i = 0; i < stdout.length(); ++i) {
+            stdout(stdout.substring(i, i + 1));
+        }
+        for (int i = 0; i < stderr.length(); ++i) {
+            assertFalse(f[0].isDone());
+            stderr(stderr.substring(i, i + 1));
+        }
+
+        ShellResult r = result(f[0]);
+        assertEquals(3, r.exitCode);
+        assertEquals(out, r.stdout);
+        assertEquals(err, r.stderr);
+    }
+
+    @Test
+    public void execute_stderrBeforeStdout() throws Exception {
+        Future<?>[] f1 = new Future<?>[1];
+        Future<?>[] f2 = new Future<?>[1];
+        String m1 = execute("one", f1);
+        String m2 = execute("two", f2);
+        // Both commands' stderr is in before any stdout
+        stderr("e1\n" + m1 + "\ne2\n\n" + m2 + "\n");
+        assertFalse(f1[0].isDone());
+        stdout("o1\n" + m1 + " 0\n");
+        assertFalse(f2[0].isDone());
+        stdout("o2\n" + m2 + " 1\n");
+
+        ShellResult r1 = result(f1[0]);
+        ShellResult r2 = result(f2[0]);
+        assertEquals("o1", r1.stdout);
+        assertEquals("e1", r1.stderr);
+        assertEquals(0, r1.exitCode);
+        assertEquals("o2", r2.stdout);
+        assertEquals("e2\n", r2.stderr);
+        assertEquals(1, r2.exitCode);
+    }
+
+    @Test
+    public void execute_exitStatus() throws Exception {
+        Future<?>[] f = new Future<?>[1];
+        String marker = execute("missing", f);
+        stderr("missing: not found\n" + marker + "\n");
+        // The status is only read once its line is complete
+        stdout("\n" + marker + " 12");
+        stdout("7");
+        assertFalse(f[0].isDone());
+        stdout("\n");
+
+        ShellResult r = result(f[0]);
+        assertEquals(127, r.exitCode);
+        assertEquals("", r.stdout);
+        assertEquals("missing: not found", r.stderr);
+    }
+
+    @Test
+    public void execute_outputAfterLastMarkerIsDropped() throws Exception {
+        Future<?>[] f = new Future<?>[1];
+        String marker = execute("cmd", f);
+        stdout("a\n" + marker + " 0\nstray");
+        stderr("\n" + marker + "\nstray");
+        assertEquals("a", result(f[0]).stdout);
+
+        marker = execute("cmd", f);
+        stdout("b\n" + marker + " 0\n");
+        stderr("\n" + marker + "\n");
+        assertEquals("b", result(f[0]).stdout);
+    }
+
+    @Test
+    public void shellExit_failsPending() throws Exception {
+        Future<?>[] f = new Future<?>[1];
+        execute("exit", f);
+        feed(ShellMessage.EXIT, "\0");
+
+        assertTrue(f[0].isDone());
+        assertFalse(f[0].isSuccess());
+        assertFalse(mSession.execute("echo").isSuccess());
+    }
+
+    @Test
+    public void close_failsPending() throws Exception {
+        Future<?>[] f = new Future<?>[1];
+        execute("sleep 10", f);
+        mChannel.onClosed();
+
+        assertTrue(f[0].cause() instanceof ClosedChannelException);
+    }
+}
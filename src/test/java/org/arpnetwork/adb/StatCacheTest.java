@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StatCacheTest {
+    private static Stat stat(long size) {
+        Stat st = new Stat();
+        st.mode = 0100644;
+        st.size = size;
+        st.mtime = 1500000000;
+        return st;
+    }
+
+    @Test
+    public void get_returnsCopies() {
+        StatCache cache = new StatCache(1, TimeUnit.MINUTES);
+        Stat st = stat(42);
+        cache.put("/a", st);
+
+        // Neither the stored nor a returned stat reaches the cache
+        st.size = 1;
+        Stat first = cache.get("/a");
+        assertEquals(42, first.size);
+        first.size = 2;
+        Stat second = cache.get("/a");
+        assertNotSame(first, second);
+        assertEquals(42, second.size);
+        assertEquals(0100644, second.mode);
+        assertEquals(1500000000, second.mtime);
+    }
+
+    @Test
+    public void get_expires() throws Exception {
+        StatCache cache = new StatCache(1, TimeUnit.MILLISECONDS);
+        cache.put("/a", stat(42));
+        Thread.sleep(5);
+        assertNull(cache.get("/a"));
+    }
+
+    @Test
+    public void invalidate() {
+        StatCache cache = new StatCache(1, TimeUnit.MINUTES);
+        cache.put("/a", stat(42));
+        cache.invalidate("/a");
+        assertNull(cache.get("/a"));
+    }
+}
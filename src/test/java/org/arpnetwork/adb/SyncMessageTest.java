@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import static org.junit.Assert.*;
+
+public class SyncMessageTest {
+    // A DENT reply: id, mode, size, mtime, name length and the name
+    private static ByteBuf dent(String name) {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeIntLE(SyncMessage.DENT);
+        buf.writeIntLE(0100644);
+        buf.writeIntLE(42);
+        buf.writeIntLE(1500000000);
+        buf.writeIntLE(name.length());
+        buf.writeBytes(name.getBytes());
+        return buf;
+    }
+
+    @Test
+    public void decodeDentFrom_waitsForWholeEntry() throws Exception {
+        ByteBuf whole = dent("file.txt");
+        ByteBuf buf = Unpooled.buffer();
+
+        // Nothing is consumed until the name has arrived
+        for (int i = 0; i < whole.readableBytes(); ++i) {
+            assertNull(SyncMessage.decodeDentFrom(buf, false));
+            assertEquals(0, buf.readerIndex());
+            buf.writeByte(whole.getByte(i));
+        }
+
+        SyncMessage msg = SyncMessage.decodeDentFrom(buf, false);
+        assertNotNull(msg);
+        assertEquals(SyncMessage.DENT, msg.id());
+        assertEquals(16 + 8, msg.content().readableBytes());
+        assertFalse(buf.isReadable());
+        msg.release();
+    }
+
+    @Test
+    public void decodeDentFrom_consecutiveEntries() throws Exception {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeBytes(dent("a"));
+        buf.writeBytes(dent("bc"));
+
+        SyncMessage first = SyncMessage.decodeDentFrom(buf, false);
+        SyncMessage second = SyncMessage.decodeDentFrom(buf, false);
+        assertEquals(16 + 1, first.content().readableBytes());
+        assertEquals(16 + 2, second.content().readableBytes());
+        assertEquals('b', second.content().getByte(16));
+        assertNull(SyncMessage.decodeDentFrom(buf, false));
+        first.release();
+        second.release();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void decodeDentFrom_rejectsNegativeNameLength() throws Exception {
+        ByteBuf buf = dent("a");
+        buf.setIntLE(16, -1);
+        SyncMessage.decodeDentFrom(buf, false);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void decodeDentFrom_rejectsOversizeNameLength() throws Exception {
+        ByteBuf buf = dent("a");
+        buf.setIntLE(16, Message.MAXDATA + 1);
+        SyncMessage.decodeDentFrom(buf, false);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import static org.junit.Assert.*;
+
+public class UtilTest {
+    private static int naiveChecksum(byte[] data, int offset, int length) {
+        int sum = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            sum += data[i] & 0xFF;
+        }
+        return sum;
+    }
+
+    @Test
+    public void checksum_matchesNaiveSum() {
+        Random random = new Random(1);
+        byte[] data = new byte[4096];
+        random.nextBytes(data);
+        ByteBuf buf = Unpooled.wrappedBuffer(data);
+
+        // Every alignment and every tail length of the eight byte loop
+        for (int offset = 0; offset < 9; ++offset) {
+            for (int length = 0; length < 40; ++length) {
+                assertEquals(naiveChecksum(data, offset, length), Util.checksum(buf, offset, length));
+            }
+        }
+        assertEquals(naiveChecksum(data, 3, 4000), Util.checksum(buf, 3, 4000));
+    }
+
+    @Test
+    public void checksum_allBitsSet() {
+        // The largest lane sums, which must not carry into each other
+        byte[] data = new byte[1024 * 1024];
+        Arrays.fill(data, (byte) 0xFF);
+        ByteBuf buf = Unpooled.wrappedBuffer(data);
+
+        assertEquals(0xFF * data.length, Util.checksum(buf, 0, data.length));
+        assertEquals(0xFF * 7, Util.checksum(buf, 1, 7));
+    }
+
+    @Test
+    public void checksum_usesIndexNotReaderIndex() {
+        byte[] data = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        ByteBuf buf = Unpooled.wrappedBuffer(data);
+        buf.skipBytes(5);
+
+        assertEquals(55, Util.checksum(buf, 0, data.length));
+    }
+}
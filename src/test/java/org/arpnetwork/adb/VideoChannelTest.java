@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 ARP Network
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.arpnetwork.adb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import static org.junit.Assert.*;
+
+public class VideoChannelTest {
+    private VideoChannel mChannel;
+
+    @Before
+    public void setUp() {
+        mChannel = new VideoChannel(new FakeConnection(), 1);
+        mChannel.onOpened(100, false, 0);
+    }
+
+    @After
+    public void tearDown() {
+        mChannel.onClosed();
+    }
+
+    private void feed(String hex) throws Exception {
+        ByteBuf buf = Unpooled.wrappedBuffer(ByteBufUtil.decodeHexDump(hex.replace(" ", "")));
+        try {
+            mChannel.onData(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    // Units queued so far as hex, continuations marked with a "+"
+    private List<String> units() {
+        List<String> units = new ArrayList<>();
+        NalUnit unit;
+        while ((unit = mChannel.poll()) != null) {
+            assertTrue(unit.timestamp() != 0);
+            units.add((unit.isContinuation() ? "+" : "") + ByteBufUtil.hexDump(unit.content()));
+            unit.release();
+        }
+        return units;
+    }
+
+    private static List<String> list(String... units) {
+        List<String> list = new ArrayList<>();
+        for (String u : units) {
+            list.add(u);
+        }
+        return list;
+    }
+
+    @Test
+    public void decode_threeAndFourByteStartCodes() throws Exception {
+        feed("00000001 6742 000001 68ce 00000001 6588 000001 4101");
+
+        assertEquals(list("000000016742", "00000168ce", "000000016588", "0000014101"), units());
+    }
+
+    @Test
+    public void decode_unitTypes() throws Exception {
+        feed("00000001 6742 000001 68ce 00000001 6588");
+
+        NalUnit sps = mChannel.poll();
+        NalUnit pps = mChannel.poll();
+        NalUnit idr = mChannel.poll();
+        assertEquals(NalUnit.TYPE_SPS, sps.type());
+        assertEquals(NalUnit.TYPE_PPS, pps.type());
+        assertEquals(NalUnit.TYPE_IDR, idr.type());
+        assertTrue(sps.isGroupStart());
+        assertFalse(pps.isGroupStart());
+        assertTrue(idr.isGroupStart());
+        sps.release();
+        pps.release();
+        idr.release();
+    }
+
+    @Test
+    public void decode_startCodeSplitAcrossPackets() throws Exception {
+        feed("00000001 651122 0000");
+        feed("01 4133");
+
+        assertEquals(list("00000001651122", "0000014133"), units());
+    }
+
+    @Test
+    public void decode_startCodeSplitInsideLeadingZeros() throws Exception {
+        feed("00000001 4111 00");
+        feed("00");
+        feed("0001 4122");
+
+        assertEquals(list("000000014111", "000000014122"), units());
+    }
+
+    @Test
+    public void decode_trailingZerosWhichAreData() throws Exception {
+        feed("00000001 41aa 00");
+        feed("00bb");
+
+        assertEquals(list("0000000141aa", "+0000bb"), units());
+    }
+
+    @Test
+    public void decode_continuation() throws Exception {
+        feed("00000001 41aabb");
+        feed("ccdd");
+        feed("000001 4101");
+
+        assertEquals(list("0000000141aabb", "+ccdd", "0000014101"), units());
+    }
+
+    @Test
+    public void overflow_dropsToNextSps() throws Exception {
+        mChannel.setCapacity(6);
+        // SPS PPS IDR P P, then the next group
+        feed("00000001 6742 00000001 68ce 00000001 6588 00000001 4101 00000001 4102");
+        feed("00000001 6743");
+        feed("00000001 68cf");
+
+        assertEquals(5, mChannel.dropped());
+        assertEquals(list("000000016743", "0000000168cf"), units());
+    }
+
+    @Test
+    public void overflow_dropsToNextIdr() throws Exception {
+        mChannel.setCapacity(4);
+        feed("00000001 6588 00000001 4101 00000001 6589 00000001 4102");
+        feed("00000001 4103");
+
+        assertEquals(2, mChannel.dropped());
+        assertEquals(list("000000016589", "000000014102", "000000014103"), units());
+    }
+
+    @Test
+    public void overflow_skipsUntilGroupStart() throws Exception {
+        mChannel.setCapacity(2);
+        feed("00000001 4101 00000001 4102");
+        // Nothing to keep: all is dropped, then units up to an IDR
+        feed("00000001 4103");
+        feed("00000001 4104");
+        feed("00000001 6588");
+
+        assertEquals(4, mChannel.dropped());
+        assertEquals(list("000000016588"), units());
+    }
+
+    @Test
+    public void close_releasesQueuedUnits() throws Exception {
+        // Both units are slices of the one packet
+        feed("00000001 6742 00000001 68ce");
+        NalUnit unit = mChannel.poll();
+        assertEquals(2, unit.content().refCnt());
+        mChannel.onClosed();
+
+        assertNull(mChannel.take());
+        assertEquals(1, unit.content().refCnt());
+        unit.release();
+    }
+}